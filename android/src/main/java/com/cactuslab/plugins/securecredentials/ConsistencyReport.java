@@ -0,0 +1,69 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The differences found between the credential index, the keystore and the stored ciphertext.
+ */
+public class ConsistencyReport implements JsAble {
+
+    private static final String ORPHANED_KEYS_KEY = "orphanedKeys";
+    private static final String ORPHANED_CIPHERTEXT_KEY = "orphanedCiphertext";
+    private static final String STALE_ENTRIES_KEY = "staleEntries";
+    private static final String MISSING_CIPHERTEXT_KEY = "missingCiphertext";
+    private static final String UNINDEXED_CREDENTIALS_KEY = "unindexedCredentials";
+    private static final String REPAIRED_KEY = "repaired";
+    private static final String SERVICE_KEY = "service";
+    private static final String USERNAME_KEY = "username";
+
+    /** Keystore aliases of stored credentials' keys that no indexed credential uses */
+    final List<String> orphanedKeys = new ArrayList<>();
+
+    /** Credentials with ciphertext but no key to decrypt it, as service and username pairs */
+    final List<String[]> orphanedCiphertext = new ArrayList<>();
+
+    /** Index entries with neither a key nor ciphertext, as service and username pairs */
+    final List<String[]> staleEntries = new ArrayList<>();
+
+    /** Indexed credentials with a key but no ciphertext or metadata, so they can't be read, as service and username pairs */
+    final List<String[]> missingCiphertext = new ArrayList<>();
+
+    /** Readable credentials missing from the index, which repair indexes again, as service and username pairs */
+    final List<String[]> unindexedCredentials = new ArrayList<>();
+
+    final boolean repaired;
+
+    ConsistencyReport(boolean repaired) {
+        this.repaired = repaired;
+    }
+
+    @Override
+    public JSObject toJS() {
+        JSObject object = new JSObject();
+        object.put(ORPHANED_KEYS_KEY, new JSArray(orphanedKeys));
+        object.put(ORPHANED_CIPHERTEXT_KEY, credentialsToJS(orphanedCiphertext));
+        object.put(STALE_ENTRIES_KEY, credentialsToJS(staleEntries));
+        object.put(MISSING_CIPHERTEXT_KEY, credentialsToJS(missingCiphertext));
+        object.put(UNINDEXED_CREDENTIALS_KEY, credentialsToJS(unindexedCredentials));
+        object.put(REPAIRED_KEY, repaired);
+        return object;
+    }
+
+    @NonNull
+    private static JSArray credentialsToJS(@NonNull List<String[]> credentials) {
+        JSArray array = new JSArray();
+        for (String[] credential : credentials) {
+            JSObject object = new JSObject();
+            object.put(SERVICE_KEY, credential[0]);
+            object.put(USERNAME_KEY, credential[1]);
+            array.put(object);
+        }
+        return array;
+    }
+}
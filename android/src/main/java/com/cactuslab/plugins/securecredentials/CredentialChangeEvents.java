@@ -0,0 +1,134 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects credential changes and delivers them as one event per service once writes have been quiet for the
+ * debounce interval, or once the first of them has waited the maximum wait, so a steady stream of writes still
+ * produces events. Repeated changes to the same username within a burst are coalesced to the last one.
+ */
+class CredentialChangeEvents implements CredentialChangeNotifier.Listener {
+
+    interface Emitter {
+        void emit(@NonNull JSObject event);
+    }
+
+    private static final String SERVICE_KEY = "service";
+    private static final String CHANGES_KEY = "changes";
+    private static final String USERNAME_KEY = "username";
+    private static final String TYPE_KEY = "type";
+    private static final String REMOVED_ALL_KEY = "removedAll";
+
+    static final long DEFAULT_DEBOUNCE = 100;
+    static final long DEFAULT_MAX_WAIT = 1000;
+
+    private static class PendingChanges {
+        boolean removedAll;
+        final Map<String, CredentialChangeNotifier.ChangeType> usernames = new LinkedHashMap<>();
+    }
+
+    private final ScheduledExecutorService executor;
+    private final long debounce;
+    private final long maxWait;
+    private final Emitter emitter;
+
+    private final Map<String, PendingChanges> pending = new LinkedHashMap<>();
+    private long generation;
+    /** When the oldest pending change was made, from {@link System#nanoTime()} */
+    private long firstPendingNanos;
+
+    /** The services to deliver events for, or null for all services */
+    @Nullable
+    private Set<String> subscription;
+
+    CredentialChangeEvents(@NonNull ScheduledExecutorService executor, long debounce, long maxWait, @NonNull Emitter emitter) {
+        this.executor = executor;
+        this.debounce = debounce;
+        this.maxWait = Math.max(maxWait, debounce);
+        this.emitter = emitter;
+    }
+
+    /**
+     * Only deliver events for the given services, or for all services if null.
+     */
+    synchronized void setSubscription(@Nullable Collection<String> services) {
+        subscription = services != null ? new HashSet<>(services) : null;
+    }
+
+    @Override
+    public synchronized void onCredentialChanged(@NonNull String service, @Nullable String username, @NonNull CredentialChangeNotifier.ChangeType type) {
+        if (subscription != null && !subscription.contains(service)) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (pending.isEmpty()) {
+            firstPendingNanos = now;
+        }
+
+        PendingChanges changes = pending.get(service);
+        if (changes == null) {
+            changes = new PendingChanges();
+            pending.put(service, changes);
+        }
+
+        if (type == CredentialChangeNotifier.ChangeType.REMOVE_ALL) {
+            changes.removedAll = true;
+            changes.usernames.clear();
+        } else if (username != null) {
+            changes.usernames.remove(username);
+            changes.usernames.put(username, type);
+        }
+
+        // Each change pushes the delivery back, so a burst of writes produces a single event, but never past the
+        // maximum wait for the oldest change
+        long waited = TimeUnit.NANOSECONDS.toMillis(now - firstPendingNanos);
+        long delay = Math.max(Math.min(debounce, maxWait - waited), 0);
+        long scheduled = ++generation;
+        executor.schedule(() -> flush(scheduled), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(long scheduled) {
+        Map<String, PendingChanges> changes;
+        synchronized (this) {
+            if (scheduled != generation || pending.isEmpty()) {
+                return;
+            }
+            changes = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+
+        for (Map.Entry<String, PendingChanges> entry : changes.entrySet()) {
+            emitter.emit(toJS(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    @NonNull
+    private static JSObject toJS(@NonNull String service, @NonNull PendingChanges changes) {
+        JSArray usernames = new JSArray();
+        for (Map.Entry<String, CredentialChangeNotifier.ChangeType> entry : changes.usernames.entrySet()) {
+            JSObject change = new JSObject();
+            change.put(USERNAME_KEY, entry.getKey());
+            change.put(TYPE_KEY, entry.getValue().name);
+            usernames.put(change);
+        }
+
+        JSObject event = new JSObject();
+        event.put(SERVICE_KEY, service);
+        event.put(REMOVED_ALL_KEY, changes.removedAll);
+        event.put(CHANGES_KEY, usernames);
+        return event;
+    }
+}
@@ -0,0 +1,55 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Notifies listeners when credentials are stored or removed. This is shared by every {@link SecureCredentialsHelper}
+ * in the process, so changes made by native code using its own helper are seen by the plugin too.
+ */
+public class CredentialChangeNotifier {
+
+    public enum ChangeType {
+        SET("set"),
+        REMOVE("remove"),
+        REMOVE_ALL("removeAll");
+
+        final String name;
+
+        ChangeType(String name) {
+            this.name = name;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that made the change.
+         * @param username the affected username, or null if every credential for the service was removed
+         */
+        void onCredentialChanged(@NonNull String service, @Nullable String username, @NonNull ChangeType type);
+    }
+
+    static final CredentialChangeNotifier shared = new CredentialChangeNotifier();
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public static CredentialChangeNotifier getInstance() {
+        return shared;
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    void notifyChanged(@NonNull String service, @Nullable String username, @NonNull ChangeType type) {
+        for (Listener listener : listeners) {
+            listener.onCredentialChanged(service, username, type);
+        }
+    }
+}
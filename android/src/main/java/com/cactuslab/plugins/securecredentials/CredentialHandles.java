@@ -0,0 +1,140 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.getcapacitor.JSObject;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Short-lived, opaque references to stored credentials. A handle carries only the credential's metadata, so callers
+ * that need to know a credential exists, or that pass it on to native code, don't pay for decrypting it or hold a
+ * copy of the secret. Handles expire after their time to live, and are invalidated when their credential changes.
+ */
+class CredentialHandles implements CredentialChangeNotifier.Listener {
+
+    static final long DEFAULT_TTL = 60_000;
+    /** Handles are only for immediate use; they're never kept for longer than this */
+    static final long MAX_TTL = 10 * 60_000;
+
+    private static final int HANDLE_BYTES = 16;
+
+    static class Handle implements JsAble {
+
+        private static final String HANDLE_KEY = "handle";
+        private static final String SERVICE_KEY = "service";
+        private static final String USERNAME_KEY = "username";
+        private static final String STRATEGY_KEY = "strategy";
+        private static final String CREATED_KEY = "created";
+        private static final String KEY_CREATED_KEY = "keyCreated";
+        private static final String BACKEND_KEY = "backend";
+        private static final String EXPIRES_KEY = "expires";
+
+        final String id;
+        final String service;
+        final String username;
+        final MetaData metaData;
+        /** When the handle expires, in milliseconds since the epoch */
+        final long expires;
+
+        Handle(@NonNull String id, @NonNull String service, @NonNull String username, @NonNull MetaData metaData, long expires) {
+            this.id = id;
+            this.service = service;
+            this.username = username;
+            this.metaData = metaData;
+            this.expires = expires;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expires;
+        }
+
+        @Override
+        public JSObject toJS() {
+            JSObject object = new JSObject();
+            object.put(HANDLE_KEY, id);
+            object.put(SERVICE_KEY, service);
+            object.put(USERNAME_KEY, username);
+            object.put(STRATEGY_KEY, metaData.securityLevel.name);
+            if (metaData.credentialCreated > 0) {
+                object.put(CREATED_KEY, metaData.credentialCreated);
+            }
+            if (metaData.created > 0) {
+                object.put(KEY_CREATED_KEY, metaData.created);
+            }
+            if (metaData.backend != null) {
+                object.put(BACKEND_KEY, metaData.backend.name);
+            }
+            object.put(EXPIRES_KEY, expires);
+            return object;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Handle> handles = new HashMap<>();
+
+    /**
+     * Create a handle for a credential. The handle expires after the time to live, or when the credential does if
+     * that's sooner.
+     */
+    @NonNull
+    Handle create(@NonNull String service, @NonNull String username, @NonNull MetaData metaData, long ttl, long now) {
+        long expires = now + Math.min(Math.max(ttl, 0), MAX_TTL);
+        if (metaData.expires > 0) {
+            expires = Math.min(expires, metaData.expires);
+        }
+
+        byte[] bytes = new byte[HANDLE_BYTES];
+        random.nextBytes(bytes);
+        Handle handle = new Handle(Base64.encodeToString(bytes, Base64.NO_WRAP | Base64.NO_PADDING | Base64.URL_SAFE), service, username, metaData, expires);
+
+        synchronized (handles) {
+            removeExpired(now);
+            handles.put(handle.id, handle);
+        }
+        return handle;
+    }
+
+    /**
+     * The handle with the given id, or null if there's no such handle or it has expired.
+     */
+    @Nullable
+    Handle get(@NonNull String id, long now) {
+        synchronized (handles) {
+            removeExpired(now);
+            return handles.get(id);
+        }
+    }
+
+    void release(@NonNull String id) {
+        synchronized (handles) {
+            handles.remove(id);
+        }
+    }
+
+    private void removeExpired(long now) {
+        for (Iterator<Handle> iterator = handles.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onCredentialChanged(@NonNull String service, @Nullable String username, @NonNull CredentialChangeNotifier.ChangeType type) {
+        synchronized (handles) {
+            for (Iterator<Handle> iterator = handles.values().iterator(); iterator.hasNext(); ) {
+                Handle handle = iterator.next();
+                if (handle.service.equals(service) && (username == null || handle.username.equals(username))) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An index of every stored credential: services, their usernames, and the keystore alias of each credential's key.
+ * Each service is stored as its own preference so that updating one service doesn't rewrite the others.
+ */
+class CredentialIndex {
+
+    private static final String TAG = "CredentialIndex";
+    static final String INDEX_PREFERENCES = "SecureCredentialsHelper.index";
+    static final String STATE_PREFERENCES = "SecureCredentialsHelper.index.state";
+    private static final String BUILT_KEY = "built";
+
+    private static final Object lock = new Object();
+
+    private final SharedPreferences preferences;
+    private final SharedPreferences state;
+    /** Commit edits rather than applying them, so they're on disk for other processes */
+    private final boolean synchronous;
+
+    CredentialIndex(@NonNull SharedPreferences preferences, @NonNull SharedPreferences state, boolean synchronous) {
+        this.preferences = preferences;
+        this.state = state;
+        this.synchronous = synchronous;
+    }
+
+    private void save(@NonNull SharedPreferences.Editor editor) {
+        if (synchronous) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
+    /** Whether the index has been built from the credentials stored before it existed */
+    boolean isBuilt() {
+        return state.getBoolean(BUILT_KEY, false);
+    }
+
+    void markBuilt() {
+        save(state.edit().putBoolean(BUILT_KEY, true));
+    }
+
+    void put(@NonNull String service, @NonNull String username, @NonNull String alias) {
+        synchronized (lock) {
+            JSONObject usernames = usernamesObject(service);
+            if (alias.equals(usernames.optString(username, null))) {
+                return;
+            }
+            try {
+                usernames.put(username, alias);
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to index " + username, e);
+                return;
+            }
+            save(preferences.edit().putString(service, usernames.toString()));
+        }
+    }
+
+    void remove(@NonNull String service, @NonNull String username) {
+        synchronized (lock) {
+            JSONObject usernames = usernamesObject(service);
+            if (usernames.remove(username) == null) {
+                return;
+            }
+            if (usernames.length() == 0) {
+                save(preferences.edit().remove(service));
+            } else {
+                save(preferences.edit().putString(service, usernames.toString()));
+            }
+        }
+    }
+
+    void removeService(@NonNull String service) {
+        synchronized (lock) {
+            save(preferences.edit().remove(service));
+        }
+    }
+
+    /** The indexed services, sorted */
+    @NonNull
+    List<String> services() {
+        return new ArrayList<>(new TreeSet<>(preferences.getAll().keySet()));
+    }
+
+    /** The usernames indexed for a service, mapped to the alias of each credential's key */
+    @NonNull
+    Map<String, String> aliases(@NonNull String service) {
+        JSONObject usernames = usernamesObject(service);
+        Map<String, String> result = new HashMap<>(usernames.length());
+        Iterator<String> keys = usernames.keys();
+        while (keys.hasNext()) {
+            String username = keys.next();
+            result.put(username, usernames.optString(username));
+        }
+        return result;
+    }
+
+    /**
+     * Count the credentials stored for a service, or for all services if the service is null.
+     */
+    int count(@Nullable String service) {
+        if (service != null) {
+            return usernamesObject(service).length();
+        }
+
+        int count = 0;
+        for (Object value : preferences.getAll().values()) {
+            count += parse((String) value).length();
+        }
+        return count;
+    }
+
+    @NonNull
+    private JSONObject usernamesObject(@NonNull String service) {
+        return parse(preferences.getString(service, null));
+    }
+
+    @NonNull
+    private static JSONObject parse(@Nullable String json) {
+        if (json == null) {
+            return new JSONObject();
+        }
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            Log.e(TAG, "Discarding unreadable index entry", e);
+            return new JSONObject();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * How a credential should be stored.
+ */
+public class CredentialOptions {
+
+    final SecurityStrategyName securityStrategy;
+    final KeyRotationPolicy rotationPolicy;
+
+    /** Compress the value before it's encrypted, if that makes it smaller */
+    boolean compress;
+
+    /** When the credential expires, in milliseconds since the epoch. Zero if it doesn't expire. */
+    long expires;
+
+    /** Where to generate a new key, or null to use the configured placement */
+    @Nullable
+    KeyPlacement placement;
+
+    CredentialOptions(@NonNull SecurityStrategyName securityStrategy, @NonNull KeyRotationPolicy rotationPolicy) {
+        this.securityStrategy = securityStrategy;
+        this.rotationPolicy = rotationPolicy;
+    }
+}
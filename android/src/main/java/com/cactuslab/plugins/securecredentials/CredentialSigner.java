@@ -0,0 +1,165 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes HMACs and signatures using a stored credential's secret as the key, so the secret never has to leave
+ * native code. For HMAC algorithms the secret's bytes are the key. For signature algorithms the secret is a PKCS#8
+ * private key, Base64 encoded with or without PEM armour.
+ *
+ * Initialised {@link Mac} and {@link Signature} objects are cached per credential and algorithm, and evicted when
+ * the credential changes. Each is cached with the digest of the value it was made from, so a value changed by
+ * another process isn't used either.
+ */
+class CredentialSigner implements CredentialChangeNotifier.Listener {
+
+    private static final int MAX_CACHED = 16;
+    private static final String KEY_SEPARATOR = "\u0000";
+
+    private static final List<String> MAC_ALGORITHMS = Arrays.asList("HmacSHA256", "HmacSHA384", "HmacSHA512");
+    private static final List<String> SIGNATURE_ALGORITHMS = Arrays.asList("SHA256withRSA", "SHA384withRSA", "SHA512withRSA",
+            "SHA256withECDSA", "SHA384withECDSA", "SHA512withECDSA");
+
+    private static class Entry {
+        final Object signer;
+        final String digest;
+
+        Entry(@NonNull Object signer, @NonNull String digest) {
+            this.signer = signer;
+            this.digest = digest;
+        }
+    }
+
+    private final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(MAX_CACHED, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    static boolean isSupported(@Nullable String algorithm) {
+        return MAC_ALGORITHMS.contains(algorithm) || SIGNATURE_ALGORITHMS.contains(algorithm);
+    }
+
+    /**
+     * Sign messages with a cached key for the credential, if there is one made from the current value.
+     * @param digest the digest of the credential's current value
+     * @return the signatures, or null if nothing is cached for the credential and algorithm
+     */
+    @Nullable
+    List<byte[]> signCached(@NonNull String service, @NonNull String username, @NonNull String algorithm, @Nullable String digest, @NonNull List<byte[]> messages) throws GeneralSecurityException {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(cacheKey(service, username, algorithm));
+        }
+        return entry != null && entry.digest.equals(digest) ? sign(entry.signer, messages) : null;
+    }
+
+    /**
+     * Sign messages using the given secret as the key.
+     * @param digest the digest of the secret, to keep the initialised key for later calls, or null to not keep it
+     */
+    @NonNull
+    List<byte[]> sign(@NonNull String service, @NonNull String username, @NonNull String algorithm, @NonNull byte[] secret, @NonNull List<byte[]> messages, @Nullable String digest) throws GeneralSecurityException {
+        Object signer = MAC_ALGORITHMS.contains(algorithm) ? initMac(algorithm, secret) : initSignature(algorithm, secret);
+        if (digest != null) {
+            synchronized (cache) {
+                cache.put(cacheKey(service, username, algorithm), new Entry(signer, digest));
+            }
+        }
+        return sign(signer, messages);
+    }
+
+    @NonNull
+    private static List<byte[]> sign(@NonNull Object signer, @NonNull List<byte[]> messages) throws GeneralSecurityException {
+        List<byte[]> result = new ArrayList<>(messages.size());
+        // Mac and Signature are stateful, so concurrent batches using the same key take turns
+        synchronized (signer) {
+            if (signer instanceof Mac) {
+                Mac mac = (Mac) signer;
+                for (byte[] message : messages) {
+                    result.add(mac.doFinal(message));
+                }
+            } else {
+                Signature signature = (Signature) signer;
+                for (byte[] message : messages) {
+                    signature.update(message);
+                    result.add(signature.sign());
+                }
+            }
+        }
+        return result;
+    }
+
+    @NonNull
+    private static Mac initMac(@NonNull String algorithm, @NonNull byte[] secret) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(secret, algorithm));
+        return mac;
+    }
+
+    @NonNull
+    private static Signature initSignature(@NonNull String algorithm, @NonNull byte[] secret) throws GeneralSecurityException {
+        String pem = new String(secret)
+                .replaceAll("-----(BEGIN|END) [A-Z ]*PRIVATE KEY-----", "")
+                .replaceAll("\\s", "");
+        byte[] encoded;
+        try {
+            encoded = Base64.decode(pem, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("The credential is not a Base64 encoded private key", e);
+        }
+
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance(algorithm.endsWith("withRSA") ? "RSA" : "EC");
+            PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(encoded));
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initSign(privateKey);
+            return signature;
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    @Override
+    public void onCredentialChanged(@NonNull String service, @Nullable String username, @NonNull CredentialChangeNotifier.ChangeType type) {
+        evict(service, username);
+    }
+
+    /**
+     * Forget the keys cached for a credential, or for every credential of a service if the username is null.
+     */
+    void evict(@NonNull String service, @Nullable String username) {
+        String prefix = username != null ? service + KEY_SEPARATOR + username + KEY_SEPARATOR : service + KEY_SEPARATOR;
+        synchronized (cache) {
+            for (Iterator<String> keys = cache.keySet().iterator(); keys.hasNext(); ) {
+                if (keys.next().startsWith(prefix)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private static String cacheKey(@NonNull String service, @NonNull String username, @NonNull String algorithm) {
+        return service + KEY_SEPARATOR + username + KEY_SEPARATOR + algorithm;
+    }
+}
@@ -0,0 +1,107 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serialises writes to the credential store between processes, and counts them so that a process can tell cheaply
+ * whether another process has changed anything. The count is kept in the lock file, which is memory mapped so
+ * checking it is a read from memory rather than a system call.
+ *
+ * A file lock is held by the whole process, so callers must also serialise writes within the process. Acquiring is
+ * reentrant for nested writes.
+ */
+class CrossProcessLock {
+
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int FILE_LENGTH = Long.BYTES;
+
+    private static final Map<String, CrossProcessLock> locks = new HashMap<>();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+
+    private FileLock lock;
+    private int depth;
+
+    private final Hold hold = this::release;
+
+    /** Releases the lock when it's closed */
+    interface Hold extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private CrossProcessLock(@NonNull File file) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        // Mapping beyond the end of the file grows it with zeroes, so a new file starts at sequence zero
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_LENGTH);
+    }
+
+    /**
+     * The lock for a file, shared by everything in the process that uses the same file.
+     */
+    @NonNull
+    static CrossProcessLock forFile(@NonNull File file) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (locks) {
+            CrossProcessLock lock = locks.get(path);
+            if (lock == null) {
+                lock = new CrossProcessLock(file);
+                locks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * The number of writes made by every process since the lock file was created.
+     */
+    long sequence() {
+        return mapped.getLong(SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Block until no other process is writing. The sequence is incremented when the outermost hold is closed.
+     */
+    @NonNull
+    Hold acquire() {
+        if (depth++ == 0) {
+            try {
+                lock = channel.lock();
+            } catch (IOException e) {
+                depth--;
+                throw new IllegalStateException("Failed to lock the credential store", e);
+            }
+        }
+        return hold;
+    }
+
+    private void release() {
+        if (--depth > 0) {
+            return;
+        }
+
+        mapped.putLong(SEQUENCE_OFFSET, sequence() + 1);
+        try {
+            lock.release();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to unlock the credential store", e);
+        } finally {
+            lock = null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Removes expired credentials in the background when the main thread is idle. It remembers the earliest expiry time
+ * so that idle callbacks are free until a credential is actually due to expire.
+ */
+class ExpirySweeper implements MessageQueue.IdleHandler, CredentialChangeNotifier.Listener {
+
+    private static final String TAG = "ExpirySweeper";
+
+    private final Context context;
+    private final SecureCredentialsHelper helper;
+    private final Executor executor;
+
+    /** Sweep as soon as we're idle so that we learn the earliest expiry */
+    private long nextExpiry = 0;
+    private boolean sweeping;
+
+    ExpirySweeper(@NonNull Context context, @NonNull SecureCredentialsHelper helper, @NonNull Executor executor) {
+        this.context = context.getApplicationContext();
+        this.helper = helper;
+        this.executor = executor;
+    }
+
+    void start() {
+        Looper.getMainLooper().getQueue().addIdleHandler(this);
+    }
+
+    void stop() {
+        Looper.getMainLooper().getQueue().removeIdleHandler(this);
+    }
+
+    @Override
+    public boolean queueIdle() {
+        synchronized (this) {
+            if (sweeping || System.currentTimeMillis() < nextExpiry) {
+                return true;
+            }
+            sweeping = true;
+        }
+
+        executor.execute(this::sweep);
+        return true;
+    }
+
+    private void sweep() {
+        long next = Long.MAX_VALUE;
+        try {
+            next = helper.removeExpiredCredentials(context, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to remove expired credentials", e);
+        } finally {
+            synchronized (this) {
+                nextExpiry = Math.min(nextExpiry > System.currentTimeMillis() ? nextExpiry : Long.MAX_VALUE, next);
+                sweeping = false;
+            }
+        }
+    }
+
+    @Override
+    public void onCredentialChanged(@NonNull String service, @Nullable String username, @NonNull CredentialChangeNotifier.ChangeType type) {
+        if (type != CredentialChangeNotifier.ChangeType.SET || username == null) {
+            return;
+        }
+
+        MetaData metaData = helper.loadMetaData(context, service, username);
+        if (metaData != null && metaData.expires > 0) {
+            synchronized (this) {
+                nextExpiry = Math.min(nextExpiry, metaData.expires);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Where a key actually lives in the keystore.
+ */
+public enum KeyBackend {
+    STRONGBOX("strongBox"),
+    TRUSTED_ENVIRONMENT("trustedEnvironment"),
+    SOFTWARE("software");
+
+    final String name;
+
+    KeyBackend(String name) {
+        this.name = name;
+    }
+
+    @Nullable
+    public static KeyBackend get(@Nullable String name) {
+        for (KeyBackend backend : values()) {
+            if (backend.name.equals(name)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,46 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Where new keys should be generated. StrongBox is a separate secure element that is more resistant to attack than
+ * the TEE, but on many devices it's much slower at RSA operations.
+ */
+public enum KeyPlacement {
+    /** Fail rather than generate a key outside StrongBox */
+    STRONGBOX_REQUIRED("strongBoxRequired"),
+    /** Use StrongBox when the device has it */
+    STRONGBOX_PREFERRED("strongBoxPreferred"),
+    /** Never use StrongBox */
+    STRONGBOX_AVOIDED("strongBoxAvoided"),
+    /** Use StrongBox if the device's StrongBox is fast enough, measured once per install */
+    AUTO("auto");
+
+    final String name;
+
+    KeyPlacement(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Whether a key in the given backend satisfies this placement, so that an existing key doesn't need replacing.
+     */
+    boolean accepts(@Nullable KeyBackend backend) {
+        return switch (this) {
+            case STRONGBOX_REQUIRED -> backend == KeyBackend.STRONGBOX;
+            case STRONGBOX_AVOIDED -> backend != KeyBackend.STRONGBOX;
+            case STRONGBOX_PREFERRED, AUTO -> true;
+        };
+    }
+
+    @NonNull
+    public static KeyPlacement get(String name) {
+        for (KeyPlacement placement : values()) {
+            if (placement.name.equals(name)) {
+                return placement;
+            }
+        }
+        throw new IllegalArgumentException("Invalid key placement: " + name);
+    }
+}
@@ -0,0 +1,217 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.getcapacitor.JSObject;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+
+/**
+ * Measures how long generating a key and decrypting a block take in the TEE and in StrongBox, so that
+ * {@link KeyPlacement#AUTO} can avoid StrongBox on devices where it's too slow. Generating an RSA key in StrongBox
+ * can take seconds, so this runs at most once per install and the result is kept in shared preferences.
+ */
+class KeyPlacementBenchmark {
+
+    private static final String TAG = "KeyPlacementBenchmark";
+    private static final String PREFERENCES = "SecureCredentialsHelper.placement";
+    private static final String RESULT_KEY = "result";
+    private static final String ALIAS_SUFFIX = "#SecureCredentialsHelper.benchmark";
+    private static final String KEYSTORE_PROVIDER_ANDROID_KEYSTORE = "AndroidKeyStore";
+    private static final String RSA_ECB_PKCS1_PADDING = "RSA/ECB/PKCS1Padding";
+    private static final int KEY_LENGTH = 2048;
+    private static final int DECRYPT_ITERATIONS = 3;
+
+    /** StrongBox is used in auto placement if decrypting a block takes no longer than this many milliseconds */
+    static final long DEFAULT_STRONGBOX_DECRYPT_BUDGET = 100;
+
+    static class Latency implements JsAble {
+
+        private static final String KEY_GENERATION_KEY = "keyGeneration";
+        private static final String DECRYPT_KEY = "decrypt";
+
+        /** Milliseconds to generate a key pair */
+        final long keyGeneration;
+        /** Milliseconds to decrypt one RSA block, averaged over several decrypts */
+        final long decrypt;
+
+        Latency(long keyGeneration, long decrypt) {
+            this.keyGeneration = keyGeneration;
+            this.decrypt = decrypt;
+        }
+
+        Latency(@NonNull JSONObject object) {
+            this.keyGeneration = object.optLong(KEY_GENERATION_KEY);
+            this.decrypt = object.optLong(DECRYPT_KEY);
+        }
+
+        @Override
+        public JSObject toJS() {
+            JSObject object = new JSObject();
+            object.put(KEY_GENERATION_KEY, keyGeneration);
+            object.put(DECRYPT_KEY, decrypt);
+            return object;
+        }
+    }
+
+    static class Result implements JsAble {
+
+        private static final String TRUSTED_ENVIRONMENT_KEY = "trustedEnvironment";
+        private static final String STRONGBOX_KEY = "strongBox";
+
+        @Nullable
+        final Latency trustedEnvironment;
+        /** Null if the device has no StrongBox or it couldn't generate a key */
+        @Nullable
+        final Latency strongBox;
+
+        Result(@Nullable Latency trustedEnvironment, @Nullable Latency strongBox) {
+            this.trustedEnvironment = trustedEnvironment;
+            this.strongBox = strongBox;
+        }
+
+        Result(@NonNull JSONObject object) {
+            JSONObject trustedEnvironment = object.optJSONObject(TRUSTED_ENVIRONMENT_KEY);
+            JSONObject strongBox = object.optJSONObject(STRONGBOX_KEY);
+            this.trustedEnvironment = trustedEnvironment != null ? new Latency(trustedEnvironment) : null;
+            this.strongBox = strongBox != null ? new Latency(strongBox) : null;
+        }
+
+        @NonNull
+        KeyBackend preferredBackend(long strongBoxDecryptBudget) {
+            return strongBox != null && strongBox.decrypt <= strongBoxDecryptBudget ? KeyBackend.STRONGBOX : KeyBackend.TRUSTED_ENVIRONMENT;
+        }
+
+        @Override
+        public JSObject toJS() {
+            JSObject object = new JSObject();
+            if (trustedEnvironment != null) {
+                object.put(TRUSTED_ENVIRONMENT_KEY, trustedEnvironment.toJS());
+            }
+            if (strongBox != null) {
+                object.put(STRONGBOX_KEY, strongBox.toJS());
+            }
+            return object;
+        }
+    }
+
+    @Nullable
+    private Result result;
+
+    /**
+     * The stored result, without measuring anything.
+     */
+    @Nullable
+    synchronized Result cachedResult(@NonNull Context context) {
+        if (result == null) {
+            String json = preferences(context).getString(RESULT_KEY, null);
+            if (json != null) {
+                try {
+                    result = new Result(new JSONObject(json));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Discarding unreadable benchmark result", e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The stored result, measuring both backends first if they haven't been measured yet.
+     */
+    @NonNull
+    synchronized Result result(@NonNull Context context) {
+        Result cached = cachedResult(context);
+        if (cached != null) {
+            return cached;
+        }
+
+        String alias = context.getPackageName() + ALIAS_SUFFIX;
+        Latency trustedEnvironment = measure(alias, false);
+        Latency strongBox = SecureCredentialsHelper.hasStrongBox(context) ? measure(alias, true) : null;
+        result = new Result(trustedEnvironment, strongBox);
+        Log.i(TAG, "Key placement benchmark " + result.toJS());
+
+        try {
+            preferences(context).edit().putString(RESULT_KEY, result.toJS().toString()).apply();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to store benchmark result", e);
+        }
+        return result;
+    }
+
+    @Nullable
+    private static Latency measure(@NonNull String alias, boolean strongBox) {
+        KeyStore keyStore = null;
+        try {
+            keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID_KEYSTORE);
+            keyStore.load(null);
+
+            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_DECRYPT)
+                    .setKeySize(KEY_LENGTH)
+                    .setDigests(KeyProperties.DIGEST_SHA256, KeyProperties.DIGEST_SHA512)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1);
+            if (strongBox && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                builder.setIsStrongBoxBacked(true);
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, KEYSTORE_PROVIDER_ANDROID_KEYSTORE);
+            generator.initialize(builder.build());
+            KeyPair pair = generator.generateKeyPair();
+            long keyGeneration = SystemClock.elapsedRealtime() - start;
+
+            byte[] block = new byte[KEY_LENGTH / 8 - 11];
+            new SecureRandom().nextBytes(block);
+            Cipher cipher = Cipher.getInstance(RSA_ECB_PKCS1_PADDING);
+            cipher.init(Cipher.ENCRYPT_MODE, pair.getPublic());
+            byte[] encrypted = cipher.doFinal(block);
+
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < DECRYPT_ITERATIONS; i++) {
+                cipher = Cipher.getInstance(RSA_ECB_PKCS1_PADDING);
+                cipher.init(Cipher.DECRYPT_MODE, pair.getPrivate());
+                cipher.doFinal(encrypted);
+            }
+            long decrypt = (SystemClock.elapsedRealtime() - start) / DECRYPT_ITERATIONS;
+
+            return new Latency(keyGeneration, decrypt);
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            // StrongBoxUnavailableException is a ProviderException, so a missing StrongBox lands here too
+            Log.w(TAG, "Failed to measure " + (strongBox ? "StrongBox" : "TEE") + " latency", e);
+            return null;
+        } finally {
+            if (keyStore != null) {
+                try {
+                    keyStore.deleteEntry(alias);
+                } catch (GeneralSecurityException e) {
+                    Log.e(TAG, "Failed to remove benchmark key", e);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private static SharedPreferences preferences(@NonNull Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
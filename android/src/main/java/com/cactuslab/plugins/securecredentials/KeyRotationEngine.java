@@ -0,0 +1,230 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.getcapacitor.JSObject;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotates the keys of every stored credential in throttled batches on a background executor. Progress is checkpointed
+ * after each batch so that a rotation interrupted by the process dying is resumed the next time the plugin loads.
+ */
+class KeyRotationEngine {
+
+    interface Listener {
+        void onRotationProgress(@NonNull Progress progress);
+    }
+
+    static class Progress implements JsAble {
+
+        private static final String TOTAL_KEY = "total";
+        private static final String COMPLETED_KEY = "completed";
+        private static final String ROTATED_KEY = "rotated";
+        private static final String SKIPPED_KEY = "skipped";
+        private static final String FAILED_KEY = "failed";
+        private static final String DONE_KEY = "done";
+
+        final int total;
+        final int completed;
+        final int rotated;
+        final int skipped;
+        final int failed;
+
+        Progress(int total, int completed, int rotated, int skipped, int failed) {
+            this.total = total;
+            this.completed = completed;
+            this.rotated = rotated;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+
+        boolean isDone() {
+            return completed >= total;
+        }
+
+        @Override
+        public JSObject toJS() {
+            JSObject object = new JSObject();
+            object.put(TOTAL_KEY, total);
+            object.put(COMPLETED_KEY, completed);
+            object.put(ROTATED_KEY, rotated);
+            object.put(SKIPPED_KEY, skipped);
+            object.put(FAILED_KEY, failed);
+            object.put(DONE_KEY, isDone());
+            return object;
+        }
+    }
+
+    private static final String TAG = "KeyRotationEngine";
+    private static final String CHECKPOINT_PREFERENCES = "SecureCredentialsHelper.rotation";
+    private static final String ITEMS_KEY = "items";
+    private static final String CURSOR_KEY = "cursor";
+    private static final String FORCE_KEY = "force";
+    private static final String MAX_KEY_AGE_KEY = "maxKeyAge";
+    private static final String BATCH_SIZE_KEY = "batchSize";
+    private static final String BATCH_DELAY_KEY = "batchDelay";
+    private static final String ROTATED_KEY = "rotated";
+    private static final String SKIPPED_KEY = "skipped";
+    private static final String FAILED_KEY = "failed";
+
+    static final int DEFAULT_BATCH_SIZE = 10;
+    static final long DEFAULT_BATCH_DELAY = 500;
+
+    private final Context context;
+    private final SecureCredentialsHelper helper;
+    private final ScheduledExecutorService executor;
+    private final Executor worker;
+    private final Listener listener;
+
+    private boolean running;
+
+    /**
+     * @param executor schedules batches after the batch delay
+     * @param worker runs the batches
+     */
+    KeyRotationEngine(@NonNull Context context, @NonNull SecureCredentialsHelper helper, @NonNull ScheduledExecutorService executor, @NonNull Executor worker, @NonNull Listener listener) {
+        this.context = context.getApplicationContext();
+        this.helper = helper;
+        this.executor = executor;
+        this.worker = worker;
+        this.listener = listener;
+    }
+
+    /**
+     * Start rotating every credential that the policy says is due.
+     * @return false if a rotation is already in progress
+     */
+    synchronized boolean start(@NonNull KeyRotationPolicy policy, int batchSize, long batchDelay) {
+        if (running || preferences().contains(ITEMS_KEY)) {
+            return false;
+        }
+
+        JSONArray items = new JSONArray();
+        for (String service : helper.services(context)) {
+            for (String username : helper.usernamesWithMetaData(context, service)) {
+                JSONArray item = new JSONArray();
+                item.put(service);
+                item.put(username);
+                items.put(item);
+            }
+        }
+
+        preferences().edit()
+                .putString(ITEMS_KEY, items.toString())
+                .putInt(CURSOR_KEY, 0)
+                .putBoolean(FORCE_KEY, policy.force)
+                .putLong(MAX_KEY_AGE_KEY, policy.maxKeyAge)
+                .putInt(BATCH_SIZE_KEY, Math.max(1, batchSize))
+                .putLong(BATCH_DELAY_KEY, Math.max(0, batchDelay))
+                .putInt(ROTATED_KEY, 0)
+                .putInt(SKIPPED_KEY, 0)
+                .putInt(FAILED_KEY, 0)
+                .commit();
+
+        Log.i(TAG, "Starting key rotation of " + items.length() + " credentials");
+        running = true;
+        worker.execute(this::runBatch);
+        return true;
+    }
+
+    /**
+     * Resume a rotation that was interrupted before it completed.
+     */
+    synchronized void resume() {
+        if (running || !preferences().contains(ITEMS_KEY)) {
+            return;
+        }
+
+        Log.i(TAG, "Resuming key rotation from checkpoint");
+        running = true;
+        worker.execute(this::runBatch);
+    }
+
+    synchronized boolean isRunning() {
+        return running;
+    }
+
+    private SharedPreferences preferences() {
+        return context.getSharedPreferences(CHECKPOINT_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private void runBatch() {
+        SharedPreferences preferences = preferences();
+        List<String[]> items;
+        try {
+            items = parseItems(preferences.getString(ITEMS_KEY, "[]"));
+        } catch (JSONException e) {
+            Log.e(TAG, "Discarding unreadable rotation checkpoint", e);
+            finish();
+            return;
+        }
+
+        KeyRotationPolicy policy = new KeyRotationPolicy(preferences.getBoolean(FORCE_KEY, true), preferences.getLong(MAX_KEY_AGE_KEY, 0));
+        int batchSize = preferences.getInt(BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE);
+        long batchDelay = preferences.getLong(BATCH_DELAY_KEY, DEFAULT_BATCH_DELAY);
+        int cursor = preferences.getInt(CURSOR_KEY, 0);
+        int rotated = preferences.getInt(ROTATED_KEY, 0);
+        int skipped = preferences.getInt(SKIPPED_KEY, 0);
+        int failed = preferences.getInt(FAILED_KEY, 0);
+
+        int end = Math.min(items.size(), cursor + batchSize);
+        for (; cursor < end; cursor++) {
+            String[] item = items.get(cursor);
+            try {
+                switch (helper.rotateCredential(context, item[0], item[1], policy)) {
+                    case ROTATED -> rotated++;
+                    case UP_TO_DATE, MISSING -> {}
+                    case REQUIRES_AUTHENTICATION -> skipped++;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to rotate key for " + item[1], e);
+                failed++;
+            }
+        }
+
+        preferences.edit()
+                .putInt(CURSOR_KEY, cursor)
+                .putInt(ROTATED_KEY, rotated)
+                .putInt(SKIPPED_KEY, skipped)
+                .putInt(FAILED_KEY, failed)
+                .commit();
+
+        Progress progress = new Progress(items.size(), cursor, rotated, skipped, failed);
+        listener.onRotationProgress(progress);
+
+        if (progress.isDone()) {
+            Log.i(TAG, "Key rotation complete. Rotated " + rotated + ", skipped " + skipped + ", failed " + failed);
+            finish();
+        } else {
+            executor.schedule(() -> worker.execute(this::runBatch), batchDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void finish() {
+        preferences().edit().clear().commit();
+        running = false;
+    }
+
+    @NonNull
+    private static List<String[]> parseItems(@NonNull String json) throws JSONException {
+        JSONArray array = new JSONArray(json);
+        List<String[]> items = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONArray item = array.getJSONArray(i);
+            items.add(new String[] { item.getString(0), item.getString(1) });
+        }
+        return items;
+    }
+}
@@ -0,0 +1,32 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Decides when storing a credential should generate a new key pair rather than re-encrypting with the existing one.
+ * A new key is always generated when the credential's security strategy changes.
+ */
+public class KeyRotationPolicy {
+
+    /** Always rotate the key, even if the strategy hasn't changed */
+    final boolean force;
+
+    /** Rotate keys older than this many milliseconds. Zero means keys don't age out. */
+    final long maxKeyAge;
+
+    KeyRotationPolicy(boolean force, long maxKeyAge) {
+        this.force = force;
+        this.maxKeyAge = maxKeyAge;
+    }
+
+    boolean requiresRotation(@Nullable MetaData existing, @NonNull SecurityStrategyName securityStrategy, long now) {
+        if (force || existing == null || existing.securityLevel != securityStrategy) {
+            return true;
+        }
+        return maxKeyAge > 0 && now - existing.created >= maxKeyAge;
+    }
+
+    static final KeyRotationPolicy onStrategyChange = new KeyRotationPolicy(false, 0);
+    static final KeyRotationPolicy always = new KeyRotationPolicy(true, 0);
+}
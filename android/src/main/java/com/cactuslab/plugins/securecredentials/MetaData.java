@@ -1,5 +1,7 @@
 package com.cactuslab.plugins.securecredentials;
 
+import androidx.annotation.Nullable;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -7,19 +9,112 @@ public class MetaData {
 
     final SecurityStrategyName securityLevel;
 
+    /** When the key protecting this credential was generated, in milliseconds since the epoch. Zero if unknown. */
+    long created;
+
+    /**
+     * When the credential was first stored, in milliseconds since the epoch. This is kept when the key is replaced.
+     * Credentials stored before it was recorded use their key's creation time.
+     */
+    long credentialCreated;
+
+    /** A keyed digest of the stored value, used to detect writes that wouldn't change anything. */
+    @Nullable
+    String digest;
+
+    /** Incremented each time the key is rotated, so the new key can live alongside the old one until it's in use. */
+    int keyGeneration;
+
+    /** Whether the value was compressed before it was encrypted */
+    boolean compressed;
+
+    /** When the credential expires, in milliseconds since the epoch. Zero if it doesn't expire. */
+    long expires;
+
+    /** Where the key was generated. Null if unknown. */
+    @Nullable
+    KeyBackend backend;
+
+    /** How long generating the key took, in milliseconds. Zero if unknown. */
+    long keyGenerationMillis;
+
+    /** Whether the key is due for rotation but couldn't be rotated without the user, so it's rotated when next set */
+    boolean rotationPending;
+
     private static final String SECURITY_LEVEL_KEY = "strategy";
+    private static final String CREATED_KEY = "created";
+    private static final String CREDENTIAL_CREATED_KEY = "credentialCreated";
+    private static final String DIGEST_KEY = "digest";
+    private static final String KEY_GENERATION_KEY = "generation";
+    private static final String COMPRESSED_KEY = "compressed";
+    private static final String EXPIRES_KEY = "expires";
+    private static final String BACKEND_KEY = "backend";
+    private static final String KEY_GENERATION_MILLIS_KEY = "keyGenerationMillis";
+    private static final String ROTATION_PENDING_KEY = "rotationPending";
 
     MetaData(SecurityStrategyName level) {
         this.securityLevel = level;
+        this.created = System.currentTimeMillis();
+        this.credentialCreated = created;
     }
 
     MetaData(JSONObject jsonObject) throws JSONException {
         this.securityLevel = SecurityStrategyName.get(jsonObject.getString(SECURITY_LEVEL_KEY));
+        this.created = jsonObject.optLong(CREATED_KEY, 0);
+        this.credentialCreated = jsonObject.optLong(CREDENTIAL_CREATED_KEY, created);
+        this.digest = jsonObject.has(DIGEST_KEY) ? jsonObject.getString(DIGEST_KEY) : null;
+        this.keyGeneration = jsonObject.optInt(KEY_GENERATION_KEY, 0);
+        this.compressed = jsonObject.optBoolean(COMPRESSED_KEY, false);
+        this.expires = jsonObject.optLong(EXPIRES_KEY, 0);
+        this.backend = KeyBackend.get(jsonObject.optString(BACKEND_KEY, null));
+        this.keyGenerationMillis = jsonObject.optLong(KEY_GENERATION_MILLIS_KEY, 0);
+        this.rotationPending = jsonObject.optBoolean(ROTATION_PENDING_KEY, false);
+    }
+
+    boolean isExpired(long now) {
+        return expires > 0 && now >= expires;
+    }
+
+    /**
+     * Whether stored metadata has expired. The expiry is only written when it's set, so metadata without one isn't
+     * parsed, which keeps listing credentials cheap when few of them expire.
+     */
+    static boolean isExpired(@Nullable Object json, long now) {
+        if (!(json instanceof String) || !((String) json).contains(EXPIRES_KEY)) {
+            return false;
+        }
+        try {
+            long expires = new JSONObject((String) json).optLong(EXPIRES_KEY, 0);
+            return expires > 0 && now >= expires;
+        } catch (JSONException e) {
+            return false;
+        }
     }
 
     JSONObject asJson() throws JSONException {
         JSONObject object = new JSONObject();
         object.put(SECURITY_LEVEL_KEY, securityLevel.name);
+        object.put(CREATED_KEY, created);
+        object.put(CREDENTIAL_CREATED_KEY, credentialCreated);
+        if (digest != null) {
+            object.put(DIGEST_KEY, digest);
+        }
+        object.put(KEY_GENERATION_KEY, keyGeneration);
+        if (compressed) {
+            object.put(COMPRESSED_KEY, true);
+        }
+        if (expires > 0) {
+            object.put(EXPIRES_KEY, expires);
+        }
+        if (backend != null) {
+            object.put(BACKEND_KEY, backend.name);
+        }
+        if (keyGenerationMillis > 0) {
+            object.put(KEY_GENERATION_MILLIS_KEY, keyGenerationMillis);
+        }
+        if (rotationPending) {
+            object.put(ROTATION_PENDING_KEY, true);
+        }
         return object;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,239 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.getcapacitor.JSObject;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs plugin operations in priority lanes, so that a user waiting on a read isn't queued behind a burst of writes
+ * that each generate a key, or behind maintenance such as deletes, key rotation and expiry sweeps.
+ *
+ * One worker only serves the interactive lane, so reads never wait for a write or maintenance task that's already
+ * running. A second worker serves every lane, taking interactive work first, then writes, then maintenance.
+ *
+ * Calls from JavaScript are rejected when their lane is full, so callers get backpressure rather than an ever-growing
+ * queue. The plugin's own maintenance tasks bypass the limit; there's only ever one of each outstanding.
+ */
+class OperationScheduler {
+
+    private static final String TAG = "OperationScheduler";
+
+    static final int DEFAULT_QUEUE_DEPTH = 32;
+    /** Queue times above this are logged */
+    private static final long SLOW_QUEUE_MILLIS = 250;
+
+    enum Lane {
+        INTERACTIVE("interactive"),
+        WRITE("write"),
+        MAINTENANCE("maintenance");
+
+        final String name;
+
+        Lane(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Task {
+        final Lane lane;
+        final Runnable runnable;
+        final long queued = SystemClock.elapsedRealtime();
+
+        Task(@NonNull Lane lane, @NonNull Runnable runnable) {
+            this.lane = lane;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Counts and timings for one lane. Percentiles are over the most recent tasks.
+     */
+    static class LaneMetrics implements JsAble {
+
+        private static final int RECENT = 128;
+
+        private static final String QUEUED_KEY = "queued";
+        private static final String COMPLETED_KEY = "completed";
+        private static final String REJECTED_KEY = "rejected";
+        private static final String QUEUE_TIME_P50_KEY = "queueTimeP50";
+        private static final String QUEUE_TIME_P95_KEY = "queueTimeP95";
+        private static final String QUEUE_TIME_MAX_KEY = "queueTimeMax";
+        private static final String RUN_TIME_MEAN_KEY = "runTimeMean";
+
+        int queued;
+        long completed;
+        long rejected;
+        long queueTimeMax;
+        long runTimeTotal;
+        private final long[] recentQueueTimes = new long[RECENT];
+
+        void record(long queueTime, long runTime) {
+            recentQueueTimes[(int) (completed % RECENT)] = queueTime;
+            completed++;
+            queueTimeMax = Math.max(queueTimeMax, queueTime);
+            runTimeTotal += runTime;
+        }
+
+        @Override
+        public JSObject toJS() {
+            long[] sorted = Arrays.copyOf(recentQueueTimes, (int) Math.min(completed, RECENT));
+            Arrays.sort(sorted);
+
+            JSObject object = new JSObject();
+            object.put(QUEUED_KEY, queued);
+            object.put(COMPLETED_KEY, completed);
+            object.put(REJECTED_KEY, rejected);
+            object.put(QUEUE_TIME_P50_KEY, percentile(sorted, 50));
+            object.put(QUEUE_TIME_P95_KEY, percentile(sorted, 95));
+            object.put(QUEUE_TIME_MAX_KEY, queueTimeMax);
+            object.put(RUN_TIME_MEAN_KEY, completed > 0 ? runTimeTotal / completed : 0);
+            return object;
+        }
+
+        private static long percentile(@NonNull long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Task>[] queues;
+    private final LaneMetrics[] metrics;
+    private final int queueDepth;
+    private final Thread[] workers;
+    private boolean shutdown;
+
+    @SuppressWarnings("unchecked")
+    OperationScheduler(int queueDepth) {
+        Lane[] lanes = Lane.values();
+        this.queueDepth = queueDepth;
+        queues = new ArrayDeque[lanes.length];
+        metrics = new LaneMetrics[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            queues[i] = new ArrayDeque<>();
+            metrics[i] = new LaneMetrics();
+        }
+
+        workers = new Thread[] {
+                new Thread(() -> work(Lane.INTERACTIVE), "SecureCredentials-interactive"),
+                new Thread(() -> work(Lane.MAINTENANCE), "SecureCredentials-worker"),
+        };
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue a task from a plugin call.
+     * @return false if the lane is full and the task was rejected
+     */
+    boolean submit(@NonNull Lane lane, @NonNull Runnable runnable) {
+        return enqueue(lane, runnable, true);
+    }
+
+    /**
+     * An executor that queues the plugin's own work in a lane, without a limit.
+     */
+    @NonNull
+    Executor executor(@NonNull Lane lane) {
+        return runnable -> enqueue(lane, runnable, false);
+    }
+
+    private boolean enqueue(@NonNull Lane lane, @NonNull Runnable runnable, boolean bounded) {
+        synchronized (lock) {
+            if (shutdown) {
+                return false;
+            }
+            ArrayDeque<Task> queue = queues[lane.ordinal()];
+            if (bounded && queue.size() >= queueDepth) {
+                metrics[lane.ordinal()].rejected++;
+                return false;
+            }
+            queue.add(new Task(lane, runnable));
+            metrics[lane.ordinal()].queued = queue.size();
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Run tasks from every lane up to and including the lowest, highest priority first.
+     */
+    private void work(@NonNull Lane lowest) {
+        while (true) {
+            Task task;
+            synchronized (lock) {
+                while ((task = next(lowest)) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            long started = SystemClock.elapsedRealtime();
+            long queueTime = started - task.queued;
+            if (queueTime > SLOW_QUEUE_MILLIS) {
+                Log.w(TAG, "Task waited " + queueTime + "ms in the " + task.lane.name + " lane");
+            }
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Task failed in the " + task.lane.name + " lane", e);
+            }
+            long runTime = SystemClock.elapsedRealtime() - started;
+
+            synchronized (lock) {
+                metrics[task.lane.ordinal()].record(queueTime, runTime);
+            }
+        }
+    }
+
+    private Task next(@NonNull Lane lowest) {
+        for (int i = 0; i <= lowest.ordinal(); i++) {
+            Task task = queues[i].poll();
+            if (task != null) {
+                metrics[i].queued = queues[i].size();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    JSObject metrics() {
+        JSObject object = new JSObject();
+        synchronized (lock) {
+            for (Lane lane : Lane.values()) {
+                object.put(lane.name, metrics[lane.ordinal()].toJS());
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Stop the workers once they finish their current tasks. Queued tasks are discarded.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            for (ArrayDeque<Task> queue : queues) {
+                queue.clear();
+            }
+            lock.notifyAll();
+        }
+    }
+}
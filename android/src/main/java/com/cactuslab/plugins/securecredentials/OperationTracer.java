@@ -0,0 +1,213 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.os.Build;
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records spans of plugin work so that a slow operation can be broken down after the fact: how long a call waited in
+ * its queue, then loading metadata, loading the key, each cipher block and any biometric prompt. Spans are kept in a
+ * ring buffer and exported in the Chrome trace event format, which Perfetto and chrome://tracing both open. Spans are
+ * also emitted as {@link Trace} sections, so they show in a system trace alongside everything else on the device.
+ *
+ * Tracing is off by default, and beginning a span costs nothing more than a volatile read until it's enabled.
+ */
+class OperationTracer {
+
+    static final OperationTracer shared = new OperationTracer();
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    /** Trace section names longer than this are rejected by the platform */
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+    private static final String CATEGORY = "SecureCredentials";
+
+    private static final String TRACE_EVENTS_KEY = "traceEvents";
+    private static final String DISPLAY_TIME_UNIT_KEY = "displayTimeUnit";
+    private static final String NAME_KEY = "name";
+    private static final String CATEGORY_KEY = "cat";
+    private static final String PHASE_KEY = "ph";
+    private static final String TIMESTAMP_KEY = "ts";
+    private static final String DURATION_KEY = "dur";
+    private static final String PROCESS_KEY = "pid";
+    private static final String THREAD_KEY = "tid";
+    private static final String ID_KEY = "id";
+    private static final String ARGS_KEY = "args";
+
+    /** A span is ended by closing it */
+    interface Span extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Span NONE = () -> {};
+
+    private static class Event {
+        final String name;
+        final long threadId;
+        /** Microseconds, on the same clock as {@link System#nanoTime()} */
+        final long start;
+        final long duration;
+        /** Non-zero for a span that may end on a different thread than it began */
+        final int asyncId;
+
+        Event(@NonNull String name, long threadId, long start, long duration, int asyncId) {
+            this.name = name;
+            this.threadId = threadId;
+            this.start = start;
+            this.duration = duration;
+            this.asyncId = asyncId;
+        }
+    }
+
+    private final AtomicInteger nextAsyncId = new AtomicInteger();
+    private final Map<Long, String> threadNames = new HashMap<>();
+
+    private volatile boolean enabled;
+    private Event[] events = new Event[DEFAULT_CAPACITY];
+    private int next;
+    private int count;
+
+    /**
+     * Start or stop recording spans. Changing the capacity discards the spans recorded so far.
+     */
+    synchronized void setEnabled(boolean enabled, int capacity) {
+        if (capacity != events.length) {
+            events = new Event[Math.max(capacity, 1)];
+            next = 0;
+            count = 0;
+        }
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Begin a span that ends on the same thread. Spans begun inside it on the same thread are nested within it.
+     */
+    @NonNull
+    Span begin(@NonNull String name) {
+        if (!enabled) {
+            return NONE;
+        }
+
+        Trace.beginSection(sectionName(name));
+        Thread thread = Thread.currentThread();
+        long start = System.nanoTime();
+        return () -> {
+            long end = System.nanoTime();
+            Trace.endSection();
+            record(name, thread, start, end, 0);
+        };
+    }
+
+    /**
+     * Begin a span that may end on another thread, or that may overlap other spans on its thread, such as time spent
+     * waiting in a queue or for the user.
+     */
+    @NonNull
+    Span beginAsync(@NonNull String name) {
+        if (!enabled) {
+            return NONE;
+        }
+
+        int id = nextAsyncId.incrementAndGet();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(sectionName(name), id);
+        }
+        Thread thread = Thread.currentThread();
+        long start = System.nanoTime();
+        return () -> {
+            long end = System.nanoTime();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.endAsyncSection(sectionName(name), id);
+            }
+            record(name, thread, start, end, id);
+        };
+    }
+
+    private synchronized void record(@NonNull String name, @NonNull Thread thread, long start, long end, int asyncId) {
+        long threadId = thread.getId();
+        if (!threadNames.containsKey(threadId)) {
+            threadNames.put(threadId, thread.getName());
+        }
+
+        events[next] = new Event(name, threadId, start / 1000, (end - start) / 1000, asyncId);
+        next = (next + 1) % events.length;
+        count = Math.min(count + 1, events.length);
+    }
+
+    /**
+     * The recorded spans as a Chrome trace, oldest first.
+     */
+    @NonNull
+    synchronized JSObject export() {
+        int pid = android.os.Process.myPid();
+        JSArray traceEvents = new JSArray();
+
+        for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+            JSObject args = new JSObject();
+            args.put(NAME_KEY, entry.getValue());
+            JSObject metadata = new JSObject();
+            metadata.put(NAME_KEY, "thread_name");
+            metadata.put(PHASE_KEY, "M");
+            metadata.put(PROCESS_KEY, pid);
+            metadata.put(THREAD_KEY, entry.getKey());
+            metadata.put(ARGS_KEY, args);
+            traceEvents.put(metadata);
+        }
+
+        for (int i = 0; i < count; i++) {
+            Event event = events[(next - count + i + events.length) % events.length];
+            if (event.asyncId == 0) {
+                JSObject complete = event(event, "X", event.start);
+                complete.put(DURATION_KEY, event.duration);
+                traceEvents.put(complete);
+            } else {
+                traceEvents.put(event(event, "b", event.start));
+                traceEvents.put(event(event, "e", event.start + event.duration));
+            }
+        }
+
+        JSObject trace = new JSObject();
+        trace.put(TRACE_EVENTS_KEY, traceEvents);
+        trace.put(DISPLAY_TIME_UNIT_KEY, "ms");
+        return trace;
+    }
+
+    @NonNull
+    private static JSObject event(@NonNull Event event, @NonNull String phase, long timestamp) {
+        JSObject object = new JSObject();
+        object.put(NAME_KEY, event.name);
+        object.put(CATEGORY_KEY, CATEGORY);
+        object.put(PHASE_KEY, phase);
+        object.put(TIMESTAMP_KEY, timestamp);
+        object.put(PROCESS_KEY, android.os.Process.myPid());
+        object.put(THREAD_KEY, event.threadId);
+        if (event.asyncId != 0) {
+            object.put(ID_KEY, event.asyncId);
+        }
+        return object;
+    }
+
+    synchronized void clear() {
+        next = 0;
+        count = 0;
+        threadNames.clear();
+    }
+
+    @NonNull
+    private static String sectionName(@NonNull String name) {
+        return name.length() > MAX_SECTION_NAME_LENGTH ? name.substring(0, MAX_SECTION_NAME_LENGTH) : name;
+    }
+}
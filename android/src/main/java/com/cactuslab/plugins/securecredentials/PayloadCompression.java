@@ -0,0 +1,73 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of credential values before they're encrypted. Every 245 bytes of plaintext costs an RSA
+ * block, and each block is a private key operation in secure hardware when it's read, so shrinking the plaintext
+ * makes reads faster as well as the stored value smaller.
+ */
+class PayloadCompression {
+
+    /** Values shorter than a single RSA block can't be made any cheaper to decrypt */
+    static final int DEFAULT_THRESHOLD = 245;
+
+    private PayloadCompression() {}
+
+    /**
+     * Compress data if it's at least the threshold length and compressing makes it smaller.
+     * @return the compressed data, or null if it should be stored uncompressed
+     */
+    @Nullable
+    static byte[] compress(@NonNull byte[] data, int threshold) {
+        if (data.length < threshold) {
+            return null;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+                if (output.size() >= data.length) {
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @NonNull
+    static byte[] decompress(@NonNull byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed value");
+                }
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
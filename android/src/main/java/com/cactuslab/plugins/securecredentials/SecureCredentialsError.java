@@ -27,8 +27,14 @@ public class SecureCredentialsError implements JsAble {
     static SecureCredentialsError unavailable(String message) {
         return new SecureCredentialsError(message, "unavailable");
     }
+    static SecureCredentialsError busy(String message) {
+        return new SecureCredentialsError(message, "busy");
+    }
     static SecureCredentialsError unknown(String message) {
         return new SecureCredentialsError("Something went wrong \uD83D\uDE31: " + message, "unknown");
     }
     static SecureCredentialsError missingParameters = new SecureCredentialsError("Some parameters were missing", "params");
+    static SecureCredentialsError invalidParameters(String message) {
+        return new SecureCredentialsError(message, "params");
+    }
 }
@@ -3,11 +3,14 @@ package com.cactuslab.plugins.securecredentials;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.security.KeyChain;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyInfo;
 import android.security.keystore.KeyProperties;
+import android.security.keystore.StrongBoxUnavailableException;
 import android.util.Base64;
 import android.util.Log;
 
@@ -19,7 +22,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -27,9 +35,11 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
+import java.security.ProviderException;
 import java.security.PublicKey;
 import java.security.UnrecoverableEntryException;
 import java.security.UnrecoverableKeyException;
@@ -38,15 +48,26 @@ import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Enumeration;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.SimpleTimeZone;
 import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
 
 import static androidx.biometric.BiometricManager.Authenticators.DEVICE_CREDENTIAL;
 
@@ -60,16 +81,48 @@ public class SecureCredentialsHelper {
     private static final String RSA_ECB_PKCS1_PADDING = "RSA/ECB/PKCS1Padding";
     private static final String TAG = "SecureCredentialsHelper";
     private static final String METADATA_KEY = ".SecureCredentialsHelper";
-
-    private KeyStore ks;
+    private static final String DIGEST_KEY_ALIAS_SUFFIX = "#SecureCredentialsHelper.digest";
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    private static final String SHARED_PREFS_DIRECTORY = "shared_prefs";
+    private static final String SHARED_PREFS_EXTENSION = ".xml";
+    private static final String LARGE_VALUE_DIRECTORY = "SecureCredentialsHelper";
+    private static final String PROCESS_LOCK_FILE = "SecureCredentialsHelper.lock";
+    /** Marks a preference value that refers to a file. Base64 never contains this character. */
+    private static final String LARGE_VALUE_REFERENCE_PREFIX = "@";
+    static final int DEFAULT_LARGE_VALUE_THRESHOLD = 4096;
+
+    /** Guards writes so that key rotation in the background can't interleave with a credential being set or removed */
+    private static final Object writeLock = new Object();
+
+    /** Loaded once and never replaced, as it's shared by reads and writes running on different threads */
+    private final KeyStore ks = loadKeyStore();
+    private int largeValueThreshold = DEFAULT_LARGE_VALUE_THRESHOLD;
+    private int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+    private KeyPlacement keyPlacement = KeyPlacement.STRONGBOX_AVOIDED;
+    private long strongBoxDecryptBudget = KeyPlacementBenchmark.DEFAULT_STRONGBOX_DECRYPT_BUDGET;
+    private final KeyPlacementBenchmark placementBenchmark = new KeyPlacementBenchmark();
+
+    private static final CrossProcessLock.Hold NO_PROCESS_LOCK = () -> {};
+    /** Set in multi-process mode */
+    @Nullable
+    private CrossProcessLock processLock;
+    /** The change sequence each preferences file was last read at, in multi-process mode */
+    private final Map<String, Long> seenSequences = new ConcurrentHashMap<>();
 
     SecureCredentialsHelper() {
+    }
+
+    @Nullable
+    private static KeyStore loadKeyStore() {
         try {
-            ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID_KEYSTORE);
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID_KEYSTORE);
             //Use null to load Keystore with default parameters.
-            ks.load(null);
+            keyStore.load(null);
+            return keyStore;
         } catch (Exception ex) {
             Log.e(TAG, "We failed to load the keystore. This is unexpected and very bad", ex);
+            return null;
         }
     }
 
@@ -77,17 +130,100 @@ public class SecureCredentialsHelper {
         return context.getPackageName() + "." + service + "." + username;
     }
 
-    public void createKey(Context context, @NonNull String service, @NonNull String username, @NonNull SecurityStrategyName securityStrategy) throws NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, JSONException {
+    private String alias(Context context, @NonNull String service, @NonNull String username, int keyGeneration) {
         String alias = alias(context, service, username);
+        return keyGeneration == 0 ? alias : alias + "#" + keyGeneration;
+    }
 
-        if (isKeyAvailable(context, service, username)) {
-            try {
-                ks.deleteEntry(alias);
-            } catch (KeyStoreException e) {
-                // Something unexpected happened, we may be able to continue though
-                Log.e(TAG, "Unexpected error removing an item from keystore", e);
+    /**
+     * The alias of the key currently protecting a credential. This changes each time the rotation engine replaces
+     * the key so that the previous key remains readable until the new ciphertext is in place.
+     */
+    private String currentAlias(Context context, @NonNull String service, @NonNull String username) {
+        MetaData metaData = loadMetaData(context, service, username);
+        return alias(context, service, username, metaData != null ? metaData.keyGeneration : 0);
+    }
+
+    /**
+     * Make this helper safe to use while other processes use the same credential store. Writes are serialised with a
+     * file lock and written through to disk before it's released, and each write increments a change sequence so
+     * reads only check whether preferences changed on disk after another process has written.
+     * Every process using the store must enable this.
+     */
+    public void setMultiProcess(Context context, boolean multiProcess) throws IOException {
+        processLock = multiProcess ? CrossProcessLock.forFile(new File(context.getNoBackupFilesDir(), PROCESS_LOCK_FILE)) : null;
+        seenSequences.clear();
+    }
+
+    @NonNull
+    private CrossProcessLock.Hold lockProcesses() {
+        return processLock != null ? processLock.acquire() : NO_PROCESS_LOCK;
+    }
+
+    /**
+     * Open a preferences file. In multi-process mode, if another process has written since we last read the file,
+     * it's opened so that the preferences are reloaded if the file changed.
+     */
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private SharedPreferences preferences(Context context, @NonNull String name) {
+        CrossProcessLock lock = processLock;
+        if (lock == null) {
+            return context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        }
+
+        long sequence = lock.sequence();
+        Long seen = seenSequences.put(name, sequence);
+        boolean current = seen != null && seen == sequence;
+        return context.getSharedPreferences(name, current ? Context.MODE_PRIVATE : Context.MODE_MULTI_PROCESS);
+    }
+
+    /**
+     * Save an edit. In multi-process mode the edit is committed synchronously so that it's on disk before the
+     * process lock is released.
+     */
+    private void save(@NonNull SharedPreferences.Editor editor) {
+        if (processLock != null) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
+    public void createKey(Context context, @NonNull String service, @NonNull String username, @NonNull SecurityStrategyName securityStrategy) throws NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, JSONException {
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                MetaData existing = loadMetaData(context, service, username);
+                MetaData metaData = new MetaData(securityStrategy);
+                if (existing != null) {
+                    metaData.keyGeneration = existing.keyGeneration + 1;
+                    metaData.credentialCreated = existing.credentialCreated;
+                }
+                generateKeyPair(context, alias(context, service, username, metaData.keyGeneration), metaData, keyPlacement);
+                saveMetaData(context, service, username, metaData);
+                if (existing != null) {
+                    try {
+                        ks.deleteEntry(alias(context, service, username, existing.keyGeneration));
+                    } catch (KeyStoreException e) {
+                        Log.e(TAG, "Unexpected error removing a replaced key from keystore", e);
+                    }
+                }
             }
         }
+    }
+
+    /**
+     * Generate a key pair for a credential in the backend chosen by the placement, recording the backend the key
+     * ended up in and how long it took in the metadata.
+     * The alias should be a new key generation; any existing key is left for the caller to remove once the
+     * credential has been written with the new key.
+     */
+    private void generateKeyPair(Context context, @NonNull String alias, @NonNull MetaData metaData, @NonNull KeyPlacement placement) throws NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        SecurityStrategyName securityStrategy = metaData.securityLevel;
+        boolean strongBox = placementBackend(context, placement) == KeyBackend.STRONGBOX && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+        if (!strongBox && placement == KeyPlacement.STRONGBOX_REQUIRED) {
+            throw new InvalidAlgorithmParameterException("StrongBox is required but this device doesn't have it");
+        }
 
         // Create a start and end time, for the validity range of the key pair that's about to be
         // generated.
@@ -142,39 +278,305 @@ public class SecureCredentialsHelper {
             }
         }
 
-        AlgorithmParameterSpec spec = builder.build();
-        // Initialize a KeyPair generator using the the intended algorithm (in this example, RSA
-        // and the KeyStore. This example uses the AndroidKeyStore.
-        KeyPairGenerator kpGenerator;
-        kpGenerator = KeyPairGenerator.getInstance(KEY_ALGORITHM_RSA, KEYSTORE_PROVIDER_ANDROID_KEYSTORE);
-        kpGenerator.initialize(spec);
-        // Generate private/public keys
-        KeyPair pair = kpGenerator.generateKeyPair();
+        if (strongBox) {
+            builder.setIsStrongBoxBacked(true);
+        }
+
+        long generationStart = SystemClock.elapsedRealtime();
+        try (OperationTracer.Span ignored = OperationTracer.shared.begin("generateKeyPair")) {
+            // Initialize a KeyPair generator using the the intended algorithm (in this example, RSA
+            // and the KeyStore. This example uses the AndroidKeyStore.
+            KeyPairGenerator kpGenerator;
+            kpGenerator = KeyPairGenerator.getInstance(KEY_ALGORITHM_RSA, KEYSTORE_PROVIDER_ANDROID_KEYSTORE);
+            try {
+                AlgorithmParameterSpec spec = builder.build();
+                kpGenerator.initialize(spec);
+                // Generate private/public keys
+                KeyPair pair = kpGenerator.generateKeyPair();
+            } catch (ProviderException e) {
+                if (!strongBox || Build.VERSION.SDK_INT < Build.VERSION_CODES.P || !(e instanceof StrongBoxUnavailableException)) {
+                    throw e;
+                }
+                if (placement == KeyPlacement.STRONGBOX_REQUIRED) {
+                    throw new InvalidAlgorithmParameterException("StrongBox is required but couldn't generate the key", e);
+                }
+
+                Log.w(TAG, "StrongBox unavailable, falling back to the TEE", e);
+                strongBox = false;
+                builder.setIsStrongBoxBacked(false);
+                kpGenerator.initialize(builder.build());
+                kpGenerator.generateKeyPair();
+            }
+        }
+
+        metaData.keyGenerationMillis = SystemClock.elapsedRealtime() - generationStart;
+        metaData.backend = keyBackend(alias, strongBox);
+        Log.i(TAG, "New key created in " + metaData.backend + " in " + metaData.keyGenerationMillis + "ms");
+    }
+
+    /**
+     * The backend new keys should be generated in for a placement, measuring the device's StrongBox first if the
+     * placement is auto and it hasn't been measured yet.
+     */
+    @NonNull
+    private KeyBackend placementBackend(Context context, @NonNull KeyPlacement placement) {
+        if (placement == KeyPlacement.STRONGBOX_AVOIDED || !hasStrongBox(context)) {
+            return KeyBackend.TRUSTED_ENVIRONMENT;
+        }
+        if (placement == KeyPlacement.AUTO) {
+            return placementBenchmark.result(context).preferredBackend(strongBoxDecryptBudget);
+        }
+        return KeyBackend.STRONGBOX;
+    }
+
+    static boolean hasStrongBox(Context context) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_STRONGBOX_KEYSTORE);
+    }
+
+    /**
+     * Measure key generation and decryption in each backend, if that hasn't been done already on this install.
+     * This can take several seconds, so it should be called in the background before keys are generated with
+     * auto placement.
+     */
+    void measureKeyPlacement(Context context) {
+        if (hasStrongBox(context)) {
+            placementBenchmark.result(context);
+        }
+    }
+
+    void setKeyPlacement(@NonNull KeyPlacement keyPlacement) {
+        this.keyPlacement = keyPlacement;
+    }
+
+    @NonNull
+    KeyPlacement getKeyPlacement() {
+        return keyPlacement;
+    }
+
+    /**
+     * @param budget the longest a StrongBox decrypt may take, in milliseconds, for auto placement to choose StrongBox
+     */
+    void setStrongBoxDecryptBudget(long budget) {
+        this.strongBoxDecryptBudget = budget;
+    }
+
+    /**
+     * Store a credential, reusing the existing key pair unless the rotation policy requires a new one or a rotation
+     * is pending.
+     * Nothing is written if the stored value already matches.
+     * @return true if the credential was written, false if it was already up to date
+     */
+    public boolean setCredential(Context context, @NonNull String service, @NonNull String username, @NonNull byte[] data, @NonNull SecurityStrategyName securityStrategy, @NonNull KeyRotationPolicy policy) throws GeneralSecurityException, IOException, JSONException {
+        return setCredential(context, service, username, data, new CredentialOptions(securityStrategy, policy));
+    }
+
+    public boolean setCredential(Context context, @NonNull String service, @NonNull String username, @NonNull byte[] data, @NonNull CredentialOptions options) throws GeneralSecurityException, IOException, JSONException {
+        SecurityStrategyName securityStrategy = options.securityStrategy;
+        byte[] compressed = options.compress ? PayloadCompression.compress(data, compressionThreshold) : null;
+
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                MetaData existing = loadMetaData(context, service, username);
+                int keyGeneration = existing != null ? existing.keyGeneration : 0;
+                String alias = alias(context, service, username, keyGeneration);
+                KeyPlacement placement = options.placement != null ? options.placement : keyPlacement;
+                boolean rotate = !isKeyAvailable(alias) || options.rotationPolicy.requiresRotation(existing, securityStrategy, System.currentTimeMillis())
+                        || existing.rotationPending
+                        || (options.placement != null && !options.placement.accepts(existing.backend));
+                String digest = digest(context, alias(context, service, username), data);
+
+                if (!rotate && digest != null && digest.equals(existing.digest) && existing.compressed == (compressed != null) && hasEncryptedData(context, service, username)) {
+                    if (existing.expires == options.expires) {
+                        Log.d(TAG, "setCredential value unchanged, skipping write");
+                    } else {
+                        Log.d(TAG, "setCredential value unchanged, updating expiry");
+                        existing.expires = options.expires;
+                        saveMetaData(context, service, username, existing);
+                        CredentialChangeNotifier.shared.notifyChanged(service, username, CredentialChangeNotifier.ChangeType.SET);
+                    }
+                    return false;
+                }
+
+                MetaData metaData;
+                String newAlias = alias;
+                if (rotate) {
+                    metaData = new MetaData(securityStrategy);
+                    if (existing != null) {
+                        // A new alias, so the old key still matches the stored ciphertext until it's replaced
+                        metaData.keyGeneration = keyGeneration + 1;
+                        newAlias = alias(context, service, username, metaData.keyGeneration);
+                        if (!existing.isExpired(System.currentTimeMillis())) {
+                            // A new key for the same credential; an expired one is being replaced by a new credential
+                            metaData.credentialCreated = existing.credentialCreated;
+                        }
+                    }
+                    generateKeyPair(context, newAlias, metaData, placement);
+                } else {
+                    metaData = existing;
+                }
+
+                // Ciphertext first, then metadata, as for rotateCredential
+                setData(context, service, username, newAlias, compressed != null ? compressed : data);
+                metaData.digest = digest;
+                metaData.compressed = compressed != null;
+                metaData.expires = options.expires;
+                saveMetaData(context, service, username, metaData);
+                if (!newAlias.equals(alias)) {
+                    try {
+                        ks.deleteEntry(alias);
+                    } catch (KeyStoreException e) {
+                        Log.e(TAG, "Unexpected error removing a replaced key from keystore", e);
+                    }
+                }
+                CredentialChangeNotifier.shared.notifyChanged(service, username, CredentialChangeNotifier.ChangeType.SET);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Re-encrypt a credential under a new key pair, if the policy requires it.
+     * The new key is generated under a new alias and the old key is only removed once the new ciphertext and
+     * metadata are in place, so concurrent reads always find a key that matches the ciphertext they load.
+     */
+    @NonNull
+    RotationOutcome rotateCredential(Context context, @NonNull String service, @NonNull String username, @NonNull KeyRotationPolicy policy) throws GeneralSecurityException, IOException, JSONException {
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                MetaData existing = loadMetaData(context, service, username);
+                if (existing == null || existing.securityLevel == null) {
+                    return RotationOutcome.MISSING;
+                }
+                if (!policy.requiresRotation(existing, existing.securityLevel, System.currentTimeMillis())) {
+                    return RotationOutcome.UP_TO_DATE;
+                }
+                if (requiresUserAuthentication(existing.securityLevel)) {
+                    // We can't decrypt without the user present, so these are rotated the next time they're set
+                    if (!existing.rotationPending) {
+                        existing.rotationPending = true;
+                        saveMetaData(context, service, username, existing);
+                    }
+                    return RotationOutcome.REQUIRES_AUTHENTICATION;
+                }
+
+                String oldAlias = alias(context, service, username, existing.keyGeneration);
+                byte[] data = decrypt(getCipher(getPrivateKey(oldAlias)), getEncryptedData(context, service, username));
+                if (data == null) {
+                    return RotationOutcome.MISSING;
+                }
+
+                MetaData metaData = new MetaData(existing.securityLevel);
+                metaData.keyGeneration = existing.keyGeneration + 1;
+                metaData.credentialCreated = existing.credentialCreated;
+                metaData.digest = existing.digest;
+                metaData.compressed = existing.compressed;
+                metaData.expires = existing.expires;
+                String alias = alias(context, service, username, metaData.keyGeneration);
+                generateKeyPair(context, alias, metaData, keyPlacement);
+
+                // Ciphertext first, then metadata; a reader that sees the old metadata retries with the new key
+                setData(context, service, username, alias, data);
+                saveMetaData(context, service, username, metaData);
+
+                try {
+                    ks.deleteEntry(oldAlias);
+                } catch (KeyStoreException e) {
+                    Log.e(TAG, "Unexpected error removing a rotated key from keystore", e);
+                }
+                return RotationOutcome.ROTATED;
+            }
+        }
+    }
+
+    enum RotationOutcome {
+        ROTATED,
+        UP_TO_DATE,
+        REQUIRES_AUTHENTICATION,
+        MISSING
+    }
 
-        Log.i(TAG, "New key created. IsHardwareBacked? " + isKeyHardwareBacked(context, service, username));
-        saveMetaData(context, service, username, new MetaData(securityStrategy));
+    private static boolean requiresUserAuthentication(@NonNull SecurityStrategyName securityStrategy) {
+        return securityStrategy == SecurityStrategyName.PIN_USER_PRESENCE || securityStrategy == SecurityStrategyName.STRONG_USER_PRESENCE;
+    }
+
+    /**
+     * Compute a digest of a credential's value keyed with a secret held in the keystore, so the stored digest can't
+     * be used to guess the value.
+     */
+    @Nullable
+    private String digest(Context context, @NonNull String alias, @NonNull byte[] data) {
+        String digestAlias = context.getPackageName() + DIGEST_KEY_ALIAS_SUFFIX;
+        try {
+            SecretKey key = (SecretKey) ks.getKey(digestAlias, null);
+            if (key == null) {
+                KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_HMAC_SHA256, KEYSTORE_PROVIDER_ANDROID_KEYSTORE);
+                keyGenerator.init(new KeyGenParameterSpec.Builder(digestAlias, KeyProperties.PURPOSE_SIGN).build());
+                key = keyGenerator.generateKey();
+            }
+
+            Mac mac = Mac.getInstance(HMAC_SHA256);
+            mac.init(key);
+            mac.update(alias.getBytes());
+            mac.update((byte) 0);
+            return Base64.encodeToString(mac.doFinal(data), Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Failed to compute credential digest", e);
+            return null;
+        }
     }
 
     // Check if device support Hardware-backed keystore
     public boolean isKeyHardwareBacked(Context context, @NonNull String service, @NonNull String username) {
-        String alias = alias(context, service, username);
+        return isKeyHardwareBacked(currentAlias(context, service, username));
+    }
+
+    private boolean isKeyHardwareBacked(@NonNull String alias) {
+        KeyInfo keyInfo = keyInfo(alias);
+        boolean isHardwareBackedKeystoreSupported = keyInfo != null && keyInfo.isInsideSecureHardware();
+        Log.d(TAG, "Hardware-Backed Keystore Supported: " + isHardwareBackedKeystoreSupported);
+        return isHardwareBackedKeystoreSupported;
+    }
+
+    @Nullable
+    private KeyBackend keyBackend(@NonNull String alias, boolean strongBoxRequested) {
+        KeyInfo keyInfo = keyInfo(alias);
+        if (keyInfo == null) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return switch (keyInfo.getSecurityLevel()) {
+                case KeyProperties.SECURITY_LEVEL_STRONGBOX -> KeyBackend.STRONGBOX;
+                case KeyProperties.SECURITY_LEVEL_TRUSTED_ENVIRONMENT -> KeyBackend.TRUSTED_ENVIRONMENT;
+                case KeyProperties.SECURITY_LEVEL_SOFTWARE -> KeyBackend.SOFTWARE;
+                default -> null;
+            };
+        }
+        // Before Android 12 the key only reports whether it's in secure hardware, but generation fails rather than
+        // quietly leaving StrongBox
+        if (!keyInfo.isInsideSecureHardware()) {
+            return KeyBackend.SOFTWARE;
+        }
+        return strongBoxRequested ? KeyBackend.STRONGBOX : KeyBackend.TRUSTED_ENVIRONMENT;
+    }
+
+    @Nullable
+    private KeyInfo keyInfo(@NonNull String alias) {
         try {
             PrivateKey privateKey = (PrivateKey) ks.getKey(alias, null);
             KeyChain.isBoundKeyAlgorithm(KeyProperties.KEY_ALGORITHM_RSA);
             KeyFactory keyFactory = KeyFactory.getInstance(privateKey.getAlgorithm(), "AndroidKeyStore");
-            KeyInfo keyInfo = keyFactory.getKeySpec(privateKey, KeyInfo.class);
-            boolean isHardwareBackedKeystoreSupported = keyInfo.isInsideSecureHardware();
-            Log.d(TAG, "Hardware-Backed Keystore Supported: " + isHardwareBackedKeystoreSupported);
-            return isHardwareBackedKeystoreSupported;
+            return keyFactory.getKeySpec(privateKey, KeyInfo.class);
         } catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException | InvalidKeySpecException | NoSuchProviderException e) {
-            Log.e(TAG, "Exception trying to inspect if the key is hardware backed", e);
-            return false;
+            Log.e(TAG, "Exception trying to inspect where the key is stored", e);
+            return null;
         }
     }
 
     public boolean isKeyAvailable(Context context, @NonNull String service, @NonNull String username) {
-        String alias = alias(context, service, username);
+        return isKeyAvailable(currentAlias(context, service, username));
+    }
 
+    private boolean isKeyAvailable(@NonNull String alias) {
         try {
             // Check if Private and Public already keys exists
             PrivateKey privateKey = (PrivateKey) ks.getKey(alias, null);
@@ -246,15 +648,93 @@ public class SecureCredentialsHelper {
         }
 
         strategies.add(new SecurityStrategy(SecurityStrategyName.STANDARD, SecurityLevel.L1_ENCRYPTED, false));
+
+        // Don't measure here; with auto placement the backend is only known once the benchmark has run
+        KeyPlacementBenchmark.Result benchmark = placementBenchmark.cachedResult(context);
+        KeyBackend backend = null;
+        if (keyPlacement != KeyPlacement.AUTO || !hasStrongBox(context)) {
+            backend = placementBackend(context, keyPlacement);
+        } else if (benchmark != null) {
+            backend = benchmark.preferredBackend(strongBoxDecryptBudget);
+        }
+        for (SecurityStrategy strategy : strategies) {
+            strategy.backend = backend;
+            strategy.latency = benchmark;
+        }
         return strategies.toArray(new SecurityStrategy[0]);
     }
 
+    /**
+     * The usernames stored for a service, leaving out credentials that have expired but not been removed yet.
+     */
     public String[] usernamesForService(Context context, @Nullable String service) {
         if (service == null) {
             return new String[0];
         }
-        SharedPreferences preferences = context.getSharedPreferences(service, Context.MODE_PRIVATE);
-        return preferences.getAll().keySet().toArray(new String[0]);
+        Set<String> usernames = new HashSet<>(preferences(context, service).getAll().keySet());
+        usernames.removeAll(expiredUsernames(context, service, System.currentTimeMillis()));
+        return usernames.toArray(new String[0]);
+    }
+
+    /**
+     * The usernames of a service's credentials that have expired but are still stored, as the expiry sweep runs
+     * after the fact.
+     */
+    @NonNull
+    private Set<String> expiredUsernames(Context context, @NonNull String service, long now) {
+        Set<String> expired = new HashSet<>();
+        for (Map.Entry<String, ?> entry : preferences(context, service + METADATA_KEY).getAll().entrySet()) {
+            if (MetaData.isExpired(entry.getValue(), now)) {
+                expired.add(entry.getKey());
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * List a page of the usernames stored for a service, sorted, optionally limited to those starting with a prefix.
+     * Usernames are read from the metadata preferences so that no ciphertext is loaded. Expired credentials are left
+     * out.
+     * @param cursor the cursor from the previous page, or null to start from the beginning
+     * @param includeMetaData whether to include each credential's strategy and creation time
+     */
+    @NonNull
+    public UsernamePage usernamesPage(Context context, @NonNull String service, @Nullable String prefix, @Nullable String cursor, int limit, boolean includeMetaData) {
+        Map<String, ?> metaData = preferences(context, service + METADATA_KEY).getAll();
+        NavigableSet<String> usernames = new TreeSet<>(metaData.keySet());
+
+        if (cursor != null && (prefix == null || cursor.compareTo(prefix) >= 0)) {
+            usernames = usernames.tailSet(cursor, false);
+        } else if (prefix != null) {
+            usernames = usernames.tailSet(prefix, true);
+        }
+
+        long now = System.currentTimeMillis();
+        List<UsernamePage.Entry> entries = new ArrayList<>(Math.min(limit, usernames.size()));
+        String last = null;
+        for (String username : usernames) {
+            if (prefix != null && !username.startsWith(prefix)) {
+                break;
+            }
+            if (MetaData.isExpired(metaData.get(username), now)) {
+                continue;
+            }
+            if (entries.size() == limit) {
+                return new UsernamePage(entries, last);
+            }
+
+            MetaData entryMetaData = null;
+            if (includeMetaData) {
+                try {
+                    entryMetaData = new MetaData(new JSONObject((String) metaData.get(username)));
+                } catch (JSONException | IllegalArgumentException e) {
+                    Log.e(TAG, "Unreadable metadata for " + username, e);
+                }
+            }
+            entries.add(new UsernamePage.Entry(username, entryMetaData));
+            last = username;
+        }
+        return new UsernamePage(entries, null);
     }
 
     public void removeCredential(Context context, @Nullable String service, @Nullable String username) throws KeyStoreException {
@@ -262,13 +742,20 @@ public class SecureCredentialsHelper {
             return;
         }
 
-        String alias = alias(context, service, username);
-        if (isKeyAvailable(context, service, username)) {
-            ks.deleteEntry(alias);
-        }
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                String alias = currentAlias(context, service, username);
+                if (isKeyAvailable(alias)) {
+                    ks.deleteEntry(alias);
+                }
 
-        context.getSharedPreferences(service, Context.MODE_PRIVATE).edit().remove(username).apply();
-        context.getSharedPreferences(service + METADATA_KEY, Context.MODE_PRIVATE).edit().remove(username).apply();
+                save(preferences(context, service).edit().remove(username));
+                save(preferences(context, service + METADATA_KEY).edit().remove(username));
+                deleteLargeValue(context, service, username);
+                index(context).remove(service, username);
+            }
+        }
+        CredentialChangeNotifier.shared.notifyChanged(service, username, CredentialChangeNotifier.ChangeType.REMOVE);
     }
 
     public void removeCredentials(Context context, @Nullable String service) throws KeyStoreException {
@@ -276,21 +763,394 @@ public class SecureCredentialsHelper {
             return;
         }
 
-        String[] usernames = usernamesForService(context, service);
-        for (String username : usernames) {
-            String alias = alias(context, service, username);
-            if (isKeyAvailable(context, service, username)) {
-                ks.deleteEntry(alias);
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                for (String username : preferences(context, service).getAll().keySet()) {
+                    String alias = currentAlias(context, service, username);
+                    if (isKeyAvailable(alias)) {
+                        ks.deleteEntry(alias);
+                    }
+                    deleteLargeValue(context, service, username);
+                }
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    context.deleteSharedPreferences(service);
+                    context.deleteSharedPreferences(service + METADATA_KEY);
+                } else {
+                    save(preferences(context, service).edit().clear());
+                    save(preferences(context, service + METADATA_KEY).edit().clear());
+                }
+                index(context).removeService(service);
             }
         }
+        CredentialChangeNotifier.shared.notifyChanged(service, null, CredentialChangeNotifier.ChangeType.REMOVE_ALL);
+    }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            context.deleteSharedPreferences(service);
-            context.deleteSharedPreferences(service + METADATA_KEY);
-        } else {
-            context.getSharedPreferences(service, Context.MODE_PRIVATE).edit().clear().apply();
-            context.getSharedPreferences(service + METADATA_KEY, Context.MODE_PRIVATE).edit().clear().apply();
+    /**
+     * Remove every credential that has expired. Each service's preferences are only written once, however many of
+     * its credentials have expired.
+     * @return the earliest expiry time of the credentials that remain, or {@link Long#MAX_VALUE} if none expire
+     */
+    public long removeExpiredCredentials(Context context, long now) {
+        long nextExpiry = Long.MAX_VALUE;
+        List<String[]> removed = new ArrayList<>();
+
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                CredentialIndex index = index(context);
+                for (String service : index.services()) {
+                    SharedPreferences metaDataPreferences = preferences(context, service + METADATA_KEY);
+                    SharedPreferences.Editor metaDataEditor = null;
+                    SharedPreferences.Editor dataEditor = null;
+
+                    for (Map.Entry<String, ?> entry : metaDataPreferences.getAll().entrySet()) {
+                        String username = entry.getKey();
+                        MetaData metaData;
+                        try {
+                            metaData = new MetaData(new JSONObject((String) entry.getValue()));
+                        } catch (JSONException | IllegalArgumentException e) {
+                            continue;
+                        }
+                        if (metaData.expires == 0) {
+                            continue;
+                        }
+                        if (!metaData.isExpired(now)) {
+                            nextExpiry = Math.min(nextExpiry, metaData.expires);
+                            continue;
+                        }
+
+                        if (metaDataEditor == null) {
+                            metaDataEditor = metaDataPreferences.edit();
+                            dataEditor = preferences(context, service).edit();
+                        }
+                        try {
+                            ks.deleteEntry(alias(context, service, username, metaData.keyGeneration));
+                        } catch (KeyStoreException e) {
+                            Log.e(TAG, "Unexpected error removing an expired key from keystore", e);
+                        }
+                        deleteLargeValue(context, service, username);
+                        metaDataEditor.remove(username);
+                        dataEditor.remove(username);
+                        index.remove(service, username);
+                        removed.add(new String[] { service, username });
+                    }
+
+                    if (metaDataEditor != null) {
+                        save(dataEditor);
+                        save(metaDataEditor);
+                    }
+                }
+            }
+        }
+
+        for (String[] credential : removed) {
+            CredentialChangeNotifier.shared.notifyChanged(credential[0], credential[1], CredentialChangeNotifier.ChangeType.REMOVE);
+        }
+        if (!removed.isEmpty()) {
+            Log.d(TAG, "Removed " + removed.size() + " expired credentials");
+        }
+        return nextExpiry;
+    }
+
+    /**
+     * Every service that has credentials stored, sorted, leaving out services whose credentials have all expired.
+     */
+    @NonNull
+    public List<String> services(Context context) {
+        CredentialIndex index = index(context);
+        long now = System.currentTimeMillis();
+        List<String> services = new ArrayList<>();
+        for (String service : index.services()) {
+            if (countUnexpired(context, index, service, now) > 0) {
+                services.add(service);
+            }
+        }
+        return services;
+    }
+
+    /**
+     * Count the credentials stored for a service, or for all services if the service is null, leaving out those that
+     * have expired.
+     */
+    public int countCredentials(Context context, @Nullable String service) {
+        CredentialIndex index = index(context);
+        long now = System.currentTimeMillis();
+        if (service != null) {
+            return countUnexpired(context, index, service, now);
+        }
+
+        int count = 0;
+        for (String indexedService : index.services()) {
+            count += countUnexpired(context, index, indexedService, now);
+        }
+        return count;
+    }
+
+    private int countUnexpired(Context context, @NonNull CredentialIndex index, @NonNull String service, long now) {
+        Set<String> expired = expiredUsernames(context, service, now);
+        if (expired.isEmpty()) {
+            return index.count(service);
+        }
+
+        int count = 0;
+        for (String username : index.aliases(service).keySet()) {
+            if (!expired.contains(username)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The index of stored credentials. Credentials stored before the index existed are indexed the first time it's
+     * used.
+     */
+    @NonNull
+    private CredentialIndex index(Context context) {
+        CredentialIndex index = new CredentialIndex(preferences(context, CredentialIndex.INDEX_PREFERENCES), preferences(context, CredentialIndex.STATE_PREFERENCES), processLock != null);
+        if (index.isBuilt()) {
+            return index;
+        }
+
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                if (!index.isBuilt()) {
+                    for (String service : scanServices(context)) {
+                        for (String username : usernamesWithMetaData(context, service)) {
+                            index.put(service, username, currentAlias(context, service, username));
+                        }
+                    }
+                    index.markBuilt();
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Compare the index against the keystore and stored ciphertext, and optionally repair what it finds. The keystore
+     * is enumerated once. Services missing from the index are found from their metadata preferences, or from
+     * ciphertext preferences holding a credential whose key is still in the keystore. Readable credentials missing
+     * from the index are indexed again; only credentials that can't be read are removed.
+     */
+    @NonNull
+    public ConsistencyReport checkConsistency(Context context, boolean repair) throws GeneralSecurityException, IOException {
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                ConsistencyReport report = new ConsistencyReport(repair);
+                CredentialIndex index = index(context);
+
+                String prefix = context.getPackageName() + ".";
+                Set<String> keystoreAliases = new HashSet<>();
+                for (Enumeration<String> aliases = ks.aliases(); aliases.hasMoreElements(); ) {
+                    String alias = aliases.nextElement();
+                    if (alias.startsWith(prefix)) {
+                        keystoreAliases.add(alias);
+                    }
+                }
+
+                Set<String> services = new TreeSet<>(index.services());
+                services.addAll(scanServices(context));
+                services.addAll(scanServicesWithKeys(context, keystoreAliases));
+
+                // The app and other libraries may keep keys under the package name too, so a key is only ours if it
+                // belongs to a username stored in one of our services
+                Set<String> credentialAliases = new HashSet<>();
+                Set<String> indexedAliases = new HashSet<>();
+                for (String service : services) {
+                    Map<String, String> aliases = index.aliases(service);
+                    Map<String, ?> ciphertext = preferences(context, service).getAll();
+                    Map<String, ?> metaData = preferences(context, service + METADATA_KEY).getAll();
+
+                    Set<String> usernames = new HashSet<>(aliases.keySet());
+                    usernames.addAll(ciphertext.keySet());
+                    usernames.addAll(metaData.keySet());
+                    for (String username : usernames) {
+                        credentialAliases.add(alias(context, service, username));
+                    }
+
+                    for (Map.Entry<String, String> entry : aliases.entrySet()) {
+                        String username = entry.getKey();
+                        indexedAliases.add(entry.getValue());
+                        if (keystoreAliases.contains(entry.getValue())) {
+                            if (!hasCiphertext(context, service, username, ciphertext.get(username)) || !metaData.containsKey(username)) {
+                                report.missingCiphertext.add(new String[] { service, username });
+                            }
+                        } else if (ciphertext.containsKey(username)) {
+                            report.orphanedCiphertext.add(new String[] { service, username });
+                        } else {
+                            report.staleEntries.add(new String[] { service, username });
+                        }
+                    }
+
+                    for (Map.Entry<String, ?> entry : ciphertext.entrySet()) {
+                        String username = entry.getKey();
+                        if (aliases.containsKey(username)) {
+                            continue;
+                        }
+                        String alias = readableAlias(context, service, username, entry.getValue(), metaData.get(username), keystoreAliases);
+                        if (alias != null) {
+                            report.unindexedCredentials.add(new String[] { service, username });
+                            indexedAliases.add(alias);
+                        } else {
+                            report.orphanedCiphertext.add(new String[] { service, username });
+                        }
+                    }
+                }
+
+                for (String alias : keystoreAliases) {
+                    boolean ours = credentialAliases.contains(alias) || credentialAliases.contains(withoutKeyGeneration(alias));
+                    if (ours && !indexedAliases.contains(alias)) {
+                        report.orphanedKeys.add(alias);
+                    }
+                }
+
+                if (repair) {
+                    for (String[] credential : report.unindexedCredentials) {
+                        index.put(credential[0], credential[1], currentAlias(context, credential[0], credential[1]));
+                    }
+                    for (String alias : report.orphanedKeys) {
+                        ks.deleteEntry(alias);
+                    }
+                    for (String[] credential : report.orphanedCiphertext) {
+                        removeCredential(context, credential[0], credential[1]);
+                    }
+                    for (String[] credential : report.staleEntries) {
+                        removeCredential(context, credential[0], credential[1]);
+                    }
+                    for (String[] credential : report.missingCiphertext) {
+                        removeCredential(context, credential[0], credential[1]);
+                    }
+                }
+                return report;
+            }
+        }
+    }
+
+    /**
+     * The alias of the key for a credential missing from the index, if its metadata, key and ciphertext are all
+     * present so that it can still be read.
+     */
+    @Nullable
+    private String readableAlias(Context context, @NonNull String service, @NonNull String username, @Nullable Object ciphertext, @Nullable Object metaData, @NonNull Set<String> keystoreAliases) {
+        if (!(metaData instanceof String) || !hasCiphertext(context, service, username, ciphertext)) {
+            return null;
         }
+        try {
+            String alias = alias(context, service, username, new MetaData(new JSONObject((String) metaData)).keyGeneration);
+            return keystoreAliases.contains(alias) ? alias : null;
+        } catch (JSONException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An alias without the key generation suffix that {@link #alias(Context, String, String, int)} adds.
+     */
+    @NonNull
+    private static String withoutKeyGeneration(@NonNull String alias) {
+        int separator = alias.lastIndexOf('#');
+        if (separator < 0 || separator == alias.length() - 1) {
+            return alias;
+        }
+        for (int i = separator + 1; i < alias.length(); i++) {
+            if (!Character.isDigit(alias.charAt(i))) {
+                return alias;
+            }
+        }
+        return alias.substring(0, separator);
+    }
+
+    /**
+     * Find every service that has credentials stored, by looking for the metadata preferences we write alongside
+     * each service.
+     */
+    @NonNull
+    private List<String> scanServices(Context context) {
+        List<String> services = new ArrayList<>();
+        File[] files = new File(context.getApplicationInfo().dataDir, SHARED_PREFS_DIRECTORY).listFiles();
+        if (files == null) {
+            return services;
+        }
+
+        String suffix = METADATA_KEY + SHARED_PREFS_EXTENSION;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(suffix)) {
+                services.add(name.substring(0, name.length() - suffix.length()));
+            }
+        }
+        return services;
+    }
+
+    /**
+     * Find services missing from the index that still have a credential, from ciphertext preferences holding a
+     * username whose key is in the keystore. Other preferences files are only opened when a key's alias could name
+     * them, as they may well be the app's own.
+     */
+    @NonNull
+    private Set<String> scanServicesWithKeys(Context context, @NonNull Set<String> keystoreAliases) {
+        Set<String> services = new HashSet<>();
+        File[] files = new File(context.getApplicationInfo().dataDir, SHARED_PREFS_DIRECTORY).listFiles();
+        if (files == null) {
+            return services;
+        }
+
+        String prefix = context.getPackageName() + ".";
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SHARED_PREFS_EXTENSION)) {
+                continue;
+            }
+            String service = name.substring(0, name.length() - SHARED_PREFS_EXTENSION.length());
+            String servicePrefix = prefix + service + ".";
+            boolean candidate = false;
+            for (String alias : keystoreAliases) {
+                if (alias.startsWith(servicePrefix)) {
+                    candidate = true;
+                    break;
+                }
+            }
+            if (!candidate) {
+                continue;
+            }
+
+            for (String username : preferences(context, service).getAll().keySet()) {
+                String alias = alias(context, service, username);
+                if (keystoreAliases.contains(alias) || hasLaterKeyGeneration(keystoreAliases, alias)) {
+                    services.add(service);
+                    break;
+                }
+            }
+        }
+        return services;
+    }
+
+    private static boolean hasLaterKeyGeneration(@NonNull Set<String> keystoreAliases, @NonNull String alias) {
+        for (String keystoreAlias : keystoreAliases) {
+            if (!keystoreAlias.equals(alias) && withoutKeyGeneration(keystoreAlias).equals(alias)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a stored ciphertext preference value has its ciphertext, which for a large value is in its own file.
+     */
+    private boolean hasCiphertext(Context context, @NonNull String service, @NonNull String username, @Nullable Object value) {
+        if (!(value instanceof String)) {
+            return false;
+        }
+        return !((String) value).startsWith(LARGE_VALUE_REFERENCE_PREFIX) || largeValueFile(context, service, username).exists();
+    }
+
+    /**
+     * The usernames for a service, read from the metadata so that no ciphertext is loaded.
+     */
+    @NonNull
+    Set<String> usernamesWithMetaData(Context context, @NonNull String service) {
+        return preferences(context, service + METADATA_KEY).getAll().keySet();
     }
 
     public void setData(Context context, @NonNull String service, @NonNull String username, @NonNull String password) throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchProviderException, InvalidKeyException, InvalidKeySpecException {
@@ -298,9 +1158,14 @@ public class SecureCredentialsHelper {
     }
 
     public void setData(Context context, @NonNull String service, @NonNull String username, @NonNull byte[] data) throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchProviderException, InvalidKeyException, InvalidKeySpecException {
-        String alias = alias(context, service, username);
+        synchronized (writeLock) {
+            try (CrossProcessLock.Hold ignored = lockProcesses()) {
+                setData(context, service, username, currentAlias(context, service, username), data);
+            }
+        }
+    }
 
-        ks.load(null);
+    private void setData(Context context, @NonNull String service, @NonNull String username, @NonNull String alias, @NonNull byte[] data) throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchProviderException, InvalidKeyException, InvalidKeySpecException {
         if (ks.getCertificate(alias) == null) return;
 
         PublicKey publicKey = ks.getCertificate(alias).getPublicKey();
@@ -312,11 +1177,92 @@ public class SecureCredentialsHelper {
 
         String value = encrypt(publicKey, data);
 
-        SharedPreferences preferences = context.getSharedPreferences(service, Context.MODE_PRIVATE);
+        SharedPreferences preferences = preferences(context, service);
         SharedPreferences.Editor editor = preferences.edit();
 
-        editor.putString(username, value);
-        editor.apply();
+        File largeValueFile = largeValueFile(context, service, username);
+        if (value.length() > largeValueThreshold) {
+            // Keep large values out of the service's preferences, which are loaded and rewritten in full
+            writeLargeValue(largeValueFile, value);
+            editor.putString(username, LARGE_VALUE_REFERENCE_PREFIX + largeValueFile.getName());
+        } else {
+            editor.putString(username, value);
+        }
+        save(editor);
+
+        if (value.length() <= largeValueThreshold && largeValueFile.exists() && !largeValueFile.delete()) {
+            Log.w(TAG, "Failed to delete large value file for " + username);
+        }
+    }
+
+    /**
+     * Credentials stored with compression enabled are only compressed if they're at least this many bytes.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Values whose ciphertext is longer than this many characters are stored in their own file rather than inline in
+     * the service's preferences.
+     */
+    public void setLargeValueThreshold(int largeValueThreshold) {
+        this.largeValueThreshold = largeValueThreshold;
+    }
+
+    @NonNull
+    private File largeValueFile(Context context, @NonNull String service, @NonNull String username) {
+        String name;
+        try {
+            // Hash the names so that any service or username makes a valid filename
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(service.getBytes());
+            digest.update((byte) 0);
+            name = Base64.encodeToString(digest.digest(username.getBytes()), Base64.NO_WRAP | Base64.NO_PADDING | Base64.URL_SAFE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        return new File(new File(context.getNoBackupFilesDir(), LARGE_VALUE_DIRECTORY), name);
+    }
+
+    private static void writeLargeValue(@NonNull File file, @NonNull String value) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+
+        // Write to a temporary file and rename it so readers never see a partially written value
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            output.write(value.getBytes(StandardCharsets.US_ASCII));
+            output.getFD().sync();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    @Nullable
+    private static String readLargeValue(@NonNull File file) {
+        try (FileInputStream input = new FileInputStream(file)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toString("US-ASCII");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read large value from " + file, e);
+            return null;
+        }
+    }
+
+    private void deleteLargeValue(Context context, @NonNull String service, @NonNull String username) {
+        File file = largeValueFile(context, service, username);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete large value file for " + username);
+        }
     }
 
     @SuppressLint("TrulyRandom")
@@ -327,7 +1273,10 @@ public class SecureCredentialsHelper {
         if (data.length <= KEY_LENGTH / 8 - 11) {
             Cipher cipher = Cipher.getInstance(RSA_ECB_PKCS1_PADDING);
             cipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
-            byte[] encrypted = cipher.doFinal(data);
+            byte[] encrypted;
+            try (OperationTracer.Span ignored = OperationTracer.shared.begin("encrypt block")) {
+                encrypted = cipher.doFinal(data);
+            }
             return Base64.encodeToString(encrypted, Base64.DEFAULT);
         } else {
             Cipher cipher = Cipher.getInstance(RSA_ECB_PKCS1_PADDING);
@@ -338,7 +1287,10 @@ public class SecureCredentialsHelper {
             while (position < data.length) {
                 if (data.length - position < limit)
                     limit = data.length - position;
-                byte[] tmpData = cipher.doFinal(data, position, limit);
+                byte[] tmpData;
+                try (OperationTracer.Span ignored = OperationTracer.shared.begin("encrypt block")) {
+                    tmpData = cipher.doFinal(data, position, limit);
+                }
                 try {
                     byteArrayOutputStream.write(tmpData);
                 } catch (IOException e) {
@@ -352,18 +1304,26 @@ public class SecureCredentialsHelper {
     }
 
     private void saveMetaData(Context context, @NonNull String service, @NonNull String username, @NonNull MetaData data) throws JSONException {
-        SharedPreferences pSharedPref = context.getSharedPreferences(service + METADATA_KEY, Context.MODE_PRIVATE);
+        SharedPreferences pSharedPref = preferences(context, service + METADATA_KEY);
         if (pSharedPref != null){
             String jsonString = data.asJson().toString();
             SharedPreferences.Editor editor = pSharedPref.edit();
             editor.putString(username, jsonString);
-            editor.apply();
+            save(editor);
         }
+        index(context).put(service, username, alias(context, service, username, data.keyGeneration));
     }
 
     @Nullable
     public MetaData loadMetaData(Context context, @NonNull String service, @NonNull String username) {
-        SharedPreferences pSharedPref = context.getSharedPreferences(service + METADATA_KEY, Context.MODE_PRIVATE);
+        try (OperationTracer.Span ignored = OperationTracer.shared.begin("loadMetaData")) {
+            return loadMetaDataUntraced(context, service, username);
+        }
+    }
+
+    @Nullable
+    private MetaData loadMetaDataUntraced(Context context, @NonNull String service, @NonNull String username) {
+        SharedPreferences pSharedPref = preferences(context, service + METADATA_KEY);
         try{
             if (pSharedPref != null){
                 String jsonString = pSharedPref.getString(username, (new JSONObject()).toString());
@@ -378,8 +1338,27 @@ public class SecureCredentialsHelper {
 
     @Nullable
     public String getEncryptedData(Context context, String service, String username) {
-        SharedPreferences preferences = context.getSharedPreferences(service, Context.MODE_PRIVATE);
-        return preferences.getString(username, null);
+        try (OperationTracer.Span ignored = OperationTracer.shared.begin("getEncryptedData")) {
+            return getEncryptedDataUntraced(context, service, username);
+        }
+    }
+
+    @Nullable
+    private String getEncryptedDataUntraced(Context context, String service, String username) {
+        SharedPreferences preferences = preferences(context, service);
+        String value = preferences.getString(username, null);
+        if (value != null && value.startsWith(LARGE_VALUE_REFERENCE_PREFIX)) {
+            return readLargeValue(largeValueFile(context, service, username));
+        }
+        return value;
+    }
+
+    /** Whether there's ciphertext stored for a credential, without loading it */
+    /**
+     * Whether a credential's ciphertext is stored, including the file a large value refers to.
+     */
+    private boolean hasEncryptedData(Context context, @NonNull String service, @NonNull String username) {
+        return hasCiphertext(context, service, username, preferences(context, service).getString(username, null));
     }
 
     @Nullable
@@ -407,13 +1386,14 @@ public class SecureCredentialsHelper {
 
     @Nullable
     public PrivateKey getPrivateKey(Context context, @NonNull String service, @NonNull String username) {
-        String alias = alias(context, service, username);
-        try {
-            ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID_KEYSTORE);
-            ks.load(null);
+        return getPrivateKey(currentAlias(context, service, username));
+    }
+
+    @Nullable
+    private PrivateKey getPrivateKey(@NonNull String alias) {
+        try (OperationTracer.Span ignored = OperationTracer.shared.begin("getPrivateKey")) {
             return (PrivateKey) ks.getKey(alias, null);
-        } catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException
-                | UnrecoverableEntryException e) {
+        } catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableEntryException e) {
             e.printStackTrace();
         }
         return null;
@@ -426,7 +1406,9 @@ public class SecureCredentialsHelper {
         byte[] encryptedBuffer = Base64.decode(encryptedData, Base64.DEFAULT);
 
         if (encryptedBuffer.length <= KEY_LENGTH / 8) {
-            return cipher.doFinal(encryptedBuffer);
+            try (OperationTracer.Span ignored = OperationTracer.shared.begin("decrypt block")) {
+                return cipher.doFinal(encryptedBuffer);
+            }
         } else {
             int limit = KEY_LENGTH / 8;
             int position = 0;
@@ -434,7 +1416,10 @@ public class SecureCredentialsHelper {
             while (position < encryptedBuffer.length) {
                 if (encryptedBuffer.length - position < limit)
                     limit = encryptedBuffer.length - position;
-                byte[] tmpData = cipher.doFinal(encryptedBuffer, position, limit);
+                byte[] tmpData;
+                try (OperationTracer.Span ignored = OperationTracer.shared.begin("decrypt block")) {
+                    tmpData = cipher.doFinal(encryptedBuffer, position, limit);
+                }
                 try {
                     byteArrayOutputStream.write(tmpData);
                 } catch (IOException e) {
@@ -447,6 +1432,59 @@ public class SecureCredentialsHelper {
         }
     }
 
+    /**
+     * Decrypt a credential that doesn't require the user to authenticate first. If the key is rotated while we're
+     * reading, the ciphertext we load may not match the key we loaded, so we reload the metadata and try again.
+     */
+    @Nullable
+    byte[] decryptCredential(Context context, @NonNull String service, @NonNull String username) throws BadPaddingException, IllegalBlockSizeException {
+        MetaData metaData = loadMetaData(context, service, username);
+        if (metaData != null && metaData.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        int keyGeneration = metaData != null ? metaData.keyGeneration : 0;
+        byte[] result;
+        try {
+            result = decrypt(getCipher(getPrivateKey(alias(context, service, username, keyGeneration))), getEncryptedData(context, service, username));
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            if (!keyGenerationChanged(context, service, username, keyGeneration)) {
+                throw e;
+            }
+            result = null;
+        }
+
+        if (result == null && keyGenerationChanged(context, service, username, keyGeneration)) {
+            Log.d(TAG, "Key rotated while reading, retrying with the new key");
+            metaData = loadMetaData(context, service, username);
+            if (metaData == null) {
+                return null;
+            }
+            result = decrypt(getCipher(getPrivateKey(alias(context, service, username, metaData.keyGeneration))), getEncryptedData(context, service, username));
+        }
+        return decode(metaData, result);
+    }
+
+    /**
+     * Undo any compression applied to a credential's value before it was encrypted.
+     */
+    @Nullable
+    private byte[] decode(@Nullable MetaData metaData, @Nullable byte[] data) {
+        if (data == null || metaData == null || !metaData.compressed) {
+            return data;
+        }
+        try {
+            return PayloadCompression.decompress(data);
+        } catch (DataFormatException e) {
+            Log.e(TAG, "Failed to decompress credential", e);
+            return null;
+        }
+    }
+
+    private boolean keyGenerationChanged(Context context, @NonNull String service, @NonNull String username, int keyGeneration) {
+        MetaData metaData = loadMetaData(context, service, username);
+        return metaData != null && metaData.keyGeneration != keyGeneration;
+    }
+
     @Nullable
     String decryptString(@Nullable Cipher cipher, @Nullable String encryptedData) throws BadPaddingException, IllegalBlockSizeException {
         byte[] data = decrypt(cipher, encryptedData);
@@ -4,11 +4,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.util.Base64;
 import android.util.Log;
 
 import androidx.activity.result.ActivityResult;
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.biometric.BiometricManager;
 import androidx.biometric.BiometricPrompt;
 import androidx.core.content.ContextCompat;
@@ -17,6 +19,7 @@ import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
+import com.getcapacitor.PluginConfig;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.ActivityCallback;
 import com.getcapacitor.annotation.CapacitorPlugin;
@@ -25,21 +28,21 @@ import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
-import java.security.cert.CertificateException;
-import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 
 import static android.app.Activity.RESULT_CANCELED;
 import static android.app.Activity.RESULT_OK;
@@ -55,36 +58,201 @@ public class SecureCredentialsPlugin extends Plugin {
     private static final String OPTIONS_KEY = "options";
     private static final String CREDENTIAL_KEY = "credential";
     private static final String STRATEGY_KEY = "strategy";
+    private static final String ROTATE_KEY_KEY = "rotateKey";
+    private static final String MAX_KEY_AGE_KEY = "maxKeyAge";
+    private static final String COMPRESS_KEY = "compress";
+    private static final String EXPIRES_AT_KEY = "expiresAt";
+    private static final String EXPIRES_IN_KEY = "expiresIn";
     private static final String BIO_FACE_KEY = "face";
     private static final String BIO_IRIS_KEY = "iris";
     private static final String BIO_FINGER_KEY = "fingerprint";
 
+    private static final String BATCH_SIZE_KEY = "batchSize";
+    private static final String BATCH_DELAY_KEY = "batchDelay";
+    private static final String KEY_ROTATION_PROGRESS_EVENT = "keyRotationProgress";
+    private static final String PREFIX_KEY = "prefix";
+    private static final String CURSOR_KEY = "cursor";
+    private static final String LIMIT_KEY = "limit";
+    private static final String INCLUDE_METADATA_KEY = "includeMetadata";
+    private static final int DEFAULT_PAGE_LIMIT = 100;
+    private static final String REPAIR_KEY = "repair";
+    private static final String SERVICES_KEY = "services";
+    private static final String CREDENTIALS_CHANGED_EVENT = "credentialsChanged";
+    private static final String CHANGE_EVENT_DEBOUNCE_CONFIG = "changeEventDebounce";
+    private static final String CHANGE_EVENT_MAX_WAIT_CONFIG = "changeEventMaxWait";
+    private static final String LARGE_VALUE_THRESHOLD_CONFIG = "largeValueThreshold";
+    private static final String ALGORITHM_KEY = "algorithm";
+    private static final String MESSAGES_KEY = "messages";
+    private static final String ENCODING_KEY = "encoding";
+    private static final String BASE64_ENCODING = "base64";
+    private static final String COMPRESSION_THRESHOLD_CONFIG = "compressionThreshold";
+    private static final String PLACEMENT_KEY = "placement";
+    private static final String KEY_PLACEMENT_CONFIG = "keyPlacement";
+    private static final String STRONGBOX_DECRYPT_BUDGET_CONFIG = "strongBoxDecryptBudget";
+    private static final String MULTI_PROCESS_CONFIG = "multiProcess";
+    private static final String HANDLE_KEY = "handle";
+    private static final String TTL_KEY = "ttl";
+    private static final String QUEUE_DEPTH_CONFIG = "queueDepth";
+    private static final String TRACING_CONFIG = "tracing";
+    private static final String TRACE_BUFFER_SIZE_CONFIG = "traceBufferSize";
+    private static final String ENABLED_KEY = "enabled";
+    private static final String CLEAR_KEY = "clear";
+
     private final SecureCredentialsHelper helper = new SecureCredentialsHelper();
+    private final CredentialSigner signer = new CredentialSigner();
+    private final CredentialHandles handles = new CredentialHandles();
+
+    private ScheduledExecutorService backgroundExecutor;
+    private OperationScheduler scheduler;
+    private KeyRotationEngine rotationEngine;
+    private CredentialChangeEvents changeEvents;
+    private ExpirySweeper expirySweeper;
+
+    @Override
+    public void load() {
+        helper.setLargeValueThreshold(getConfig().getInt(LARGE_VALUE_THRESHOLD_CONFIG, SecureCredentialsHelper.DEFAULT_LARGE_VALUE_THRESHOLD));
+        helper.setCompressionThreshold(getConfig().getInt(COMPRESSION_THRESHOLD_CONFIG, PayloadCompression.DEFAULT_THRESHOLD));
+        helper.setKeyPlacement(configuredKeyPlacement(getConfig()));
+        helper.setStrongBoxDecryptBudget(getConfig().getInt(STRONGBOX_DECRYPT_BUDGET_CONFIG, (int) KeyPlacementBenchmark.DEFAULT_STRONGBOX_DECRYPT_BUDGET));
+        if (getConfig().getBoolean(MULTI_PROCESS_CONFIG, false)) {
+            try {
+                helper.setMultiProcess(getContext(), true);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to enable multi-process mode", e);
+            }
+        }
+
+        OperationTracer.shared.setEnabled(getConfig().getBoolean(TRACING_CONFIG, false),
+                getConfig().getInt(TRACE_BUFFER_SIZE_CONFIG, OperationTracer.DEFAULT_CAPACITY));
+
+        backgroundExecutor = Executors.newSingleThreadScheduledExecutor();
+        scheduler = new OperationScheduler(getConfig().getInt(QUEUE_DEPTH_CONFIG, OperationScheduler.DEFAULT_QUEUE_DEPTH));
+        Executor maintenance = scheduler.executor(OperationScheduler.Lane.MAINTENANCE);
+        if (helper.getKeyPlacement() == KeyPlacement.AUTO) {
+            // Measure StrongBox before the first key needs it, rather than while a credential is being set
+            maintenance.execute(() -> helper.measureKeyPlacement(getContext()));
+        }
+        rotationEngine = new KeyRotationEngine(getContext(), helper, backgroundExecutor, maintenance, progress -> notifyListeners(KEY_ROTATION_PROGRESS_EVENT, progress.toJS()));
+        rotationEngine.resume();
+
+        long debounce = getConfig().getInt(CHANGE_EVENT_DEBOUNCE_CONFIG, (int) CredentialChangeEvents.DEFAULT_DEBOUNCE);
+        long maxWait = getConfig().getInt(CHANGE_EVENT_MAX_WAIT_CONFIG, (int) CredentialChangeEvents.DEFAULT_MAX_WAIT);
+        changeEvents = new CredentialChangeEvents(backgroundExecutor, debounce, maxWait, event -> {
+            if (hasListeners(CREDENTIALS_CHANGED_EVENT)) {
+                notifyListeners(CREDENTIALS_CHANGED_EVENT, event);
+            }
+        });
+        CredentialChangeNotifier.shared.addListener(changeEvents);
+        CredentialChangeNotifier.shared.addListener(signer);
+        CredentialChangeNotifier.shared.addListener(handles);
+
+        expirySweeper = new ExpirySweeper(getContext(), helper, maintenance);
+        CredentialChangeNotifier.shared.addListener(expirySweeper);
+        expirySweeper.start();
+    }
+
+    /**
+     * The key placement named in the plugin config, or the default if it names one that doesn't exist, as a mistake in
+     * the config shouldn't stop the plugin from loading.
+     */
+    @NonNull
+    static KeyPlacement configuredKeyPlacement(@NonNull PluginConfig config) {
+        String name = config.getString(KEY_PLACEMENT_CONFIG, KeyPlacement.STRONGBOX_AVOIDED.name);
+        try {
+            return KeyPlacement.get(name);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid key placement [" + name + "] in config, using " + KeyPlacement.STRONGBOX_AVOIDED.name);
+            return KeyPlacement.STRONGBOX_AVOIDED;
+        }
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        CredentialChangeNotifier.shared.removeListener(changeEvents);
+        CredentialChangeNotifier.shared.removeListener(signer);
+        CredentialChangeNotifier.shared.removeListener(handles);
+        CredentialChangeNotifier.shared.removeListener(expirySweeper);
+        expirySweeper.stop();
+        backgroundExecutor.shutdownNow();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Run a plugin call's work in a scheduler lane, or reject the call if the lane is full.
+     */
+    private void schedule(PluginCall call, OperationScheduler.Lane lane, Runnable operation) {
+        String method = call.getMethodName();
+        OperationTracer.Span queued = OperationTracer.shared.beginAsync(method + " queued");
+        boolean submitted = scheduler.submit(lane, () -> {
+            queued.close();
+            try (OperationTracer.Span ignored = OperationTracer.shared.begin(method)) {
+                operation.run();
+            } catch (RuntimeException e) {
+                // The bridge would have rejected the call if this had been thrown from the plugin method itself
+                Log.e(TAG, "Unexpected error", e);
+                call.reject(e.toString(), e);
+            }
+        });
+        if (!submitted) {
+            queued.close();
+            Log.w(TAG, "Rejected call, the " + lane.name + " queue is full");
+            call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.busy("The " + lane.name + " queue is full")).toJS());
+        }
+    }
 
     @PluginMethod
     public void setCredential(PluginCall call) {
-        Log.d(TAG, "setCredential");
-        String service = call.getString(SERVICE_KEY);
-        JSObject credential = call.getObject(CREDENTIAL_KEY);
-        String username = credential.getString(USERNAME_KEY);
-        String password = credential.getString(PASSWORD_KEY);
-        JSObject options = call.getObject(OPTIONS_KEY, new JSObject());
-        assert options != null;
-
-        SecurityStrategyName securityStrategy = SecurityStrategyName.get(options.getString(STRATEGY_KEY));
+        schedule(call, OperationScheduler.Lane.WRITE, () -> {
+            Log.d(TAG, "setCredential");
+            String service = call.getString(SERVICE_KEY);
+            JSObject credential = call.getObject(CREDENTIAL_KEY);
+            String username = credential.getString(USERNAME_KEY);
+            String password = credential.getString(PASSWORD_KEY);
+            JSObject options = call.getObject(OPTIONS_KEY, new JSObject());
+            assert options != null;
+
+            SecurityStrategyName securityStrategy = SecurityStrategyName.get(options.getString(STRATEGY_KEY));
+            KeyRotationPolicy policy = new KeyRotationPolicy(options.optBoolean(ROTATE_KEY_KEY, false), options.optLong(MAX_KEY_AGE_KEY, 0));
+            CredentialOptions credentialOptions = new CredentialOptions(securityStrategy, policy);
+            credentialOptions.compress = options.optBoolean(COMPRESS_KEY, false);
+            if (options.has(EXPIRES_AT_KEY)) {
+                credentialOptions.expires = options.optLong(EXPIRES_AT_KEY);
+            } else if (options.has(EXPIRES_IN_KEY)) {
+                credentialOptions.expires = System.currentTimeMillis() + options.optLong(EXPIRES_IN_KEY);
+            }
+            if (options.has(PLACEMENT_KEY)) {
+                try {
+                    credentialOptions.placement = KeyPlacement.get(options.getString(PLACEMENT_KEY));
+                } catch (IllegalArgumentException e) {
+                    call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.invalidParameters(e.getMessage())).toJS());
+                    return;
+                }
+            }
 //        Log.d(TAG, "setCredential for security strategy [" + securityStrategy.name + "]");
-        call.resolve(setCredential(service, username, password, securityStrategy).toJS());
+            call.resolve(setCredential(service, username, password, credentialOptions).toJS());
+        });
     }
 
     @PluginMethod
     public void getCredential(PluginCall call) {
-        Log.d(TAG, "getCredential PluginMethod");
-        String service = call.getString(SERVICE_KEY);
-        String username = call.getString(USERNAME_KEY);
-        assert service != null;
-        assert username != null;
+        schedule(call, OperationScheduler.Lane.INTERACTIVE, () -> {
+            Log.d(TAG, "getCredential PluginMethod");
+            String service = call.getString(SERVICE_KEY);
+            String username = call.getString(USERNAME_KEY);
+            assert service != null;
+            assert username != null;
+            getCredential(call, service, username);
+        });
+    }
 
+    private void getCredential(PluginCall call, @NonNull String service, @NonNull String username) {
         MetaData metaData = helper.loadMetaData(getContext(), service, username);
+        if (metaData != null && metaData.isExpired(System.currentTimeMillis())) {
+            Log.d(TAG, "getCredential Error NoData, expired");
+            call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.noData).toJS());
+            return;
+        }
+
         PrivateKey key = helper.getPrivateKey(getContext(), service, username);
         String encryptedData = helper.getEncryptedData(getContext(), service, username);
         if (metaData == null || encryptedData == null || key == null || metaData.securityLevel == null) {
@@ -108,42 +276,274 @@ public class SecureCredentialsPlugin extends Plugin {
         }
     }
 
+    @PluginMethod
+    public void getCredentialHandle(PluginCall call) {
+        schedule(call, OperationScheduler.Lane.INTERACTIVE, () -> {
+            Log.d(TAG, "getCredentialHandle");
+            String service = call.getString(SERVICE_KEY);
+            String username = call.getString(USERNAME_KEY);
+            if (service == null || username == null) {
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.missingParameters).toJS());
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            MetaData metaData = helper.loadMetaData(getContext(), service, username);
+            if (metaData == null || metaData.securityLevel == null || metaData.isExpired(now)) {
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.noData).toJS());
+                return;
+            }
+
+            CredentialHandles.Handle handle = handles.create(service, username, metaData, call.getData().optLong(TTL_KEY, CredentialHandles.DEFAULT_TTL), now);
+            call.resolve(new SecureCredentialsResult<>(true, handle).toJS());
+        });
+    }
+
+    @PluginMethod
+    public void resolveHandle(PluginCall call) {
+        schedule(call, OperationScheduler.Lane.INTERACTIVE, () -> {
+            Log.d(TAG, "resolveHandle");
+            CredentialHandles.Handle handle = validHandle(call.getString(HANDLE_KEY));
+            if (handle == null) {
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.noData).toJS());
+                return;
+            }
+            getCredential(call, handle.service, handle.username);
+        });
+    }
+
+    @PluginMethod
+    public void releaseHandle(PluginCall call) {
+        String handle = call.getString(HANDLE_KEY);
+        if (handle != null) {
+            handles.release(handle);
+        }
+        call.resolve(SecureCredentialsResult.successResult.toJS());
+    }
+
+    /**
+     * Decrypt the credential a handle refers to, for other native plugins that were given the handle. Only
+     * credentials that don't challenge the user can be resolved this way.
+     * @return the credential's value, or null if the handle isn't valid or the credential requires the user
+     */
+    @Nullable
+    public byte[] decryptHandle(@NonNull String handle) throws GeneralSecurityException {
+        CredentialHandles.Handle resolved = validHandle(handle);
+        if (resolved == null || resolved.metaData.securityLevel != SecurityStrategyName.STANDARD) {
+            return null;
+        }
+        return helper.decryptCredential(getContext(), resolved.service, resolved.username);
+    }
+
+    /**
+     * The handle with the given id, if it hasn't expired and its credential hasn't changed since it was created,
+     * including by another process.
+     */
+    @Nullable
+    private CredentialHandles.Handle validHandle(@Nullable String id) {
+        if (id == null) {
+            return null;
+        }
+        CredentialHandles.Handle handle = handles.get(id, System.currentTimeMillis());
+        if (handle == null) {
+            return null;
+        }
+        MetaData metaData = helper.loadMetaData(getContext(), handle.service, handle.username);
+        if (metaData == null || metaData.securityLevel != handle.metaData.securityLevel || !Objects.equals(metaData.digest, handle.metaData.digest)) {
+            handles.release(id);
+            return null;
+        }
+        return handle;
+    }
+
     @PluginMethod
     public void getUsernames(PluginCall call) {
-        Log.d(TAG, "getUsernames");
-        String service = call.getString(SERVICE_KEY);
-        String[] accounts = helper.usernamesForService(getContext(), service);
-        Log.d(TAG, "getUsernames [" + accounts.toString() + "]");
-        call.resolve((new SecureCredentialsResult<>(true, accounts)).toJS());
+        schedule(call, OperationScheduler.Lane.INTERACTIVE, () -> {
+            Log.d(TAG, "getUsernames");
+            String service = call.getString(SERVICE_KEY);
+            String[] accounts = helper.usernamesForService(getContext(), service);
+            Log.d(TAG, "getUsernames [" + accounts.toString() + "]");
+            call.resolve((new SecureCredentialsResult<>(true, accounts)).toJS());
+        });
+    }
+
+    @PluginMethod
+    public void listUsernames(PluginCall call) {
+        schedule(call, OperationScheduler.Lane.INTERACTIVE, () -> {
+            Log.d(TAG, "listUsernames");
+            String service = call.getString(SERVICE_KEY);
+            if (service == null) {
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.missingParameters).toJS());
+                return;
+            }
+
+            int limit = call.getInt(LIMIT_KEY, DEFAULT_PAGE_LIMIT);
+            UsernamePage page = helper.usernamesPage(getContext(), service, call.getString(PREFIX_KEY), call.getString(CURSOR_KEY),
+                    limit > 0 ? limit : DEFAULT_PAGE_LIMIT, call.getBoolean(INCLUDE_METADATA_KEY, false));
+            call.resolve(new SecureCredentialsResult<>(true, page).toJS());
+        });
+    }
+
+    @PluginMethod
+    public void listServices(PluginCall call) {
+        schedule(call, OperationScheduler.Lane.INTERACTIVE, () -> {
+            Log.d(TAG, "listServices");
+            List<String> services = helper.services(getContext());
+            call.resolve(new SecureCredentialsResult<>(true, services.toArray(new String[0])).toJS());
+        });
+    }
+
+    @PluginMethod
+    public void countCredentials(PluginCall call) {
+        schedule(call, OperationScheduler.Lane.INTERACTIVE, () -> {
+            Log.d(TAG, "countCredentials");
+            String service = call.getString(SERVICE_KEY);
+            call.resolve(new SecureCredentialsResult<>(true, helper.countCredentials(getContext(), service)).toJS());
+        });
+    }
+
+    @PluginMethod
+    public void checkConsistency(PluginCall call) {
+        schedule(call, OperationScheduler.Lane.MAINTENANCE, () -> {
+            Log.d(TAG, "checkConsistency");
+            try {
+                ConsistencyReport report = helper.checkConsistency(getContext(), call.getBoolean(REPAIR_KEY, false));
+                call.resolve(new SecureCredentialsResult<>(true, report).toJS());
+            } catch (GeneralSecurityException | IOException e) {
+                Log.e(TAG, "checkConsistency error " + e);
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.unknown("error: " + e)).toJS());
+            }
+        });
     }
 
     @PluginMethod
     public void removeCredential(PluginCall call) {
-        Log.d(TAG, "removeCredential");
-        String service = call.getString(SERVICE_KEY);
-        String username = call.getString(USERNAME_KEY);
-        try {
-            helper.removeCredential(getContext(), service, username);
-            Log.d(TAG, "removeCredential success");
-            call.resolve(SecureCredentialsResult.successResult.toJS());
-        } catch (KeyStoreException e) {
-            Log.e(TAG, "removeCredential error " + e);
-            call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.unknown("error: " + e)).toJS());
-        }
+        schedule(call, OperationScheduler.Lane.MAINTENANCE, () -> {
+            Log.d(TAG, "removeCredential");
+            String service = call.getString(SERVICE_KEY);
+            String username = call.getString(USERNAME_KEY);
+            try {
+                helper.removeCredential(getContext(), service, username);
+                Log.d(TAG, "removeCredential success");
+                call.resolve(SecureCredentialsResult.successResult.toJS());
+            } catch (KeyStoreException e) {
+                Log.e(TAG, "removeCredential error " + e);
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.unknown("error: " + e)).toJS());
+            }
+        });
     }
 
     @PluginMethod
     public void removeCredentials(PluginCall call) {
-        Log.d(TAG, "removeCredentials");
-        String service = call.getString(SERVICE_KEY);
+        schedule(call, OperationScheduler.Lane.MAINTENANCE, () -> {
+            Log.d(TAG, "removeCredentials");
+            String service = call.getString(SERVICE_KEY);
+            try {
+                helper.removeCredentials(getContext(), service);
+                call.resolve(SecureCredentialsResult.successResult.toJS());
+                Log.d(TAG, "removeCredentials success");
+            } catch (KeyStoreException e) {
+                Log.e(TAG, "removeCredentials error " + e);
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.unknown("error: " + e)).toJS());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void rotateKeys(PluginCall call) {
+        schedule(call, OperationScheduler.Lane.MAINTENANCE, () -> {
+            Log.d(TAG, "rotateKeys");
+            KeyRotationPolicy policy = call.getData().has(MAX_KEY_AGE_KEY) ? new KeyRotationPolicy(false, call.getData().optLong(MAX_KEY_AGE_KEY)) : KeyRotationPolicy.always;
+            int batchSize = call.getInt(BATCH_SIZE_KEY, KeyRotationEngine.DEFAULT_BATCH_SIZE);
+            long batchDelay = call.getData().optLong(BATCH_DELAY_KEY, KeyRotationEngine.DEFAULT_BATCH_DELAY);
+
+            boolean started = rotationEngine.start(policy, batchSize, batchDelay);
+            call.resolve(new SecureCredentialsResult<>(true, started).toJS());
+        });
+    }
+
+    @PluginMethod
+    public void setChangeSubscription(PluginCall call) {
+        Log.d(TAG, "setChangeSubscription");
+        JSArray services = call.getArray(SERVICES_KEY);
         try {
-            helper.removeCredentials(getContext(), service);
+            changeEvents.setSubscription(services != null ? services.<String>toList() : null);
             call.resolve(SecureCredentialsResult.successResult.toJS());
-            Log.d(TAG, "removeCredentials success");
-        } catch (KeyStoreException e) {
-            Log.e(TAG, "removeCredentials error " + e);
-            call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.unknown("error: " + e)).toJS());
+        } catch (JSONException e) {
+            call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.missingParameters).toJS());
+        }
+    }
+
+    @PluginMethod
+    public void signWithCredential(PluginCall call) {
+        schedule(call, OperationScheduler.Lane.INTERACTIVE, () -> {
+            Log.d(TAG, "signWithCredential");
+            String service = call.getString(SERVICE_KEY);
+            String username = call.getString(USERNAME_KEY);
+            String algorithm = call.getString(ALGORITHM_KEY);
+            JSArray messages = call.getArray(MESSAGES_KEY);
+            if (service == null || username == null || algorithm == null || messages == null) {
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.missingParameters).toJS());
+                return;
+            }
+            if (!CredentialSigner.isSupported(algorithm)) {
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.unavailable("Unsupported algorithm " + algorithm)).toJS());
+                return;
+            }
+
+            List<byte[]> decodedMessages = new ArrayList<>(messages.length());
+            boolean base64 = BASE64_ENCODING.equals(call.getString(ENCODING_KEY));
+            try {
+                for (int i = 0; i < messages.length(); i++) {
+                    String message = messages.getString(i);
+                    decodedMessages.add(base64 ? Base64.decode(message, Base64.DEFAULT) : message.getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (JSONException | IllegalArgumentException e) {
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.missingParameters).toJS());
+                return;
+            }
+
+            MetaData metaData = helper.loadMetaData(getContext(), service, username);
+            if (metaData != null && metaData.isExpired(System.currentTimeMillis())) {
+                // The sweeper will remove it, but until then a key cached from it mustn't be used
+                signer.evict(service, username);
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.noData).toJS());
+                return;
+            }
+            if (metaData == null || metaData.securityLevel == null) {
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.noData).toJS());
+                return;
+            }
+
+            if (metaData.securityLevel == SecurityStrategyName.STANDARD) {
+                call.resolve(signWithCredential(service, username, algorithm, decodedMessages, metaData.digest).toJS());
+            } else {
+                // Credentials that need the user present aren't cached, so every use is challenged
+                getActivity().runOnUiThread(() -> startBiometricPrompt(call, metaData.securityLevel,
+                        () -> call.resolve(signWithCredential(service, username, algorithm, decodedMessages, null).toJS())));
+            }
+        });
+    }
+
+    @PluginMethod
+    public void getSchedulerMetrics(PluginCall call) {
+        call.resolve(new SecureCredentialsResult<>(true, scheduler.metrics()).toJS());
+    }
+
+    @PluginMethod
+    public void setTracing(PluginCall call) {
+        OperationTracer.shared.setEnabled(Boolean.TRUE.equals(call.getBoolean(ENABLED_KEY, false)),
+                getConfig().getInt(TRACE_BUFFER_SIZE_CONFIG, OperationTracer.DEFAULT_CAPACITY));
+        call.resolve(new SecureCredentialsResult<>(true, true).toJS());
+    }
+
+    @PluginMethod
+    public void exportTrace(PluginCall call) {
+        JSObject trace = OperationTracer.shared.export();
+        if (Boolean.TRUE.equals(call.getBoolean(CLEAR_KEY, false))) {
+            OperationTracer.shared.clear();
         }
+        call.resolve(new SecureCredentialsResult<>(true, trace).toJS());
     }
 
     @PluginMethod
@@ -182,13 +582,37 @@ public class SecureCredentialsPlugin extends Plugin {
 
     @MainThread
     private void startBiometricPrompt(final PluginCall call, String service, String username, SecurityStrategyName securityStrategy) {
-        SecureCredentialsHelper helper = new SecureCredentialsHelper();
+        Context context = getContext();
+        startBiometricPrompt(call, securityStrategy, () -> {
+            try {
+                byte[] decrypted = helper.decryptCredential(context, service, username);
+                String decryptedString = decrypted != null ? new String(decrypted) : null;
+
+                Log.d(TAG, "biometricResult received OK");
+
+                JSObject credential = new JSObject();
+                credential.put(USERNAME_KEY, username);
+                credential.put(PASSWORD_KEY, decryptedString);
+                call.resolve((new SecureCredentialsResult<>(true, credential)).toJS());
+
+            } catch (BadPaddingException | IllegalBlockSizeException e) {
+                e.printStackTrace();
+                Log.d(TAG, "biometricResult received CANCELED");
+                call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.failedToAccess).toJS());
+            }
+        });
+    }
+
+    /**
+     * Challenge the user as the security strategy requires, and run the action once they've authenticated.
+     */
+    @MainThread
+    private void startBiometricPrompt(final PluginCall call, SecurityStrategyName securityStrategy, Runnable onAuthenticated) {
         Context context = getContext();
         String title = call.getString(TITLE_KEY);
         String subtitle = call.getString(SUBTITLE_KEY);
         String description = call.getString(DESCRIPTION_KEY);
         String negativeButtonKey = call.getString(NEGATIVE_BUTTON_KEY);
-        MetaData metaData = helper.loadMetaData(context, service, username);
 
         BiometricPrompt.PromptInfo.Builder promptInfoBuilder = new BiometricPrompt.PromptInfo.Builder()
                 .setTitle(title != null ? title : "Authenticate")
@@ -215,33 +639,22 @@ public class SecureCredentialsPlugin extends Plugin {
 
         BiometricPrompt.PromptInfo promptInfo = promptInfoBuilder.build();
         Executor executor = ContextCompat.getMainExecutor(context);
+        // The prompt is asynchronous, so the wait can overlap other work on the main thread
+        OperationTracer.Span promptWait = OperationTracer.shared.beginAsync("biometricPrompt");
         BiometricPrompt biometricPrompt = new BiometricPrompt(getActivity(), executor, new BiometricPrompt.AuthenticationCallback() {
             @Override
             public void onAuthenticationError(int errorCode, @NonNull CharSequence errString) {
                 super.onAuthenticationError(errorCode, errString);
+                promptWait.close();
                 Log.d(TAG, "biometricResult received CANCELED");
                 call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.failedToAccess).toJS());
             }
 
             @Override
             public void onAuthenticationSucceeded(@NonNull BiometricPrompt.AuthenticationResult result) {
-                try {
-                    PrivateKey key = helper.getPrivateKey(context, service, username);
-                    Cipher cipher = helper.getCipher(key);
-
-                    String decryptedString = helper.decryptString(cipher, helper.getEncryptedData(context, service, username));
-
-                    Log.d(TAG, "biometricResult received OK");
-
-                    JSObject credential = new JSObject();
-                    credential.put(USERNAME_KEY, call.getString(USERNAME_KEY));
-                    credential.put(PASSWORD_KEY, decryptedString);
-                    call.resolve((new SecureCredentialsResult<>(true, credential)).toJS());
-
-                } catch (BadPaddingException | IllegalBlockSizeException e) {
-                    e.printStackTrace();
-                    Log.d(TAG, "biometricResult received CANCELED");
-                    call.resolve(SecureCredentialsResult.errorResult(SecureCredentialsError.failedToAccess).toJS());
+                promptWait.close();
+                try (OperationTracer.Span ignored = OperationTracer.shared.begin("onAuthenticated")) {
+                    onAuthenticated.run();
                 }
             }
 
@@ -268,15 +681,12 @@ public class SecureCredentialsPlugin extends Plugin {
 
     public JsAble getCredential(String service, String username) {
         Log.d(TAG, "getCredential for " + username);
-        PrivateKey privateKey = helper.getPrivateKey(getContext(), service, username);
-        Cipher cipher = helper.getCipher(privateKey);
-        String encryptedData = helper.getEncryptedData(getContext(), service, username);
         try {
-            String result = helper.decryptString(cipher, encryptedData);
+            byte[] result = helper.decryptCredential(getContext(), service, username);
             if (result != null) {
                 JSObject credential = new JSObject();
                 credential.put(USERNAME_KEY, username);
-                credential.put(PASSWORD_KEY, result);
+                credential.put(PASSWORD_KEY, new String(result));
                 return (new SecureCredentialsResult<>(true,credential));
             } else {
                 return SecureCredentialsResult.errorResult(SecureCredentialsError.noData);
@@ -287,22 +697,56 @@ public class SecureCredentialsPlugin extends Plugin {
         }
     }
 
+    /**
+     * @param digest the digest of the credential's value, to cache the signing key; null to not cache it
+     */
+    private JsAble signWithCredential(String service, String username, String algorithm, List<byte[]> messages, @Nullable String digest) {
+        try {
+            List<byte[]> signatures = digest != null ? signer.signCached(service, username, algorithm, digest, messages) : null;
+            if (signatures == null) {
+                byte[] secret = helper.decryptCredential(getContext(), service, username);
+                if (secret == null) {
+                    return SecureCredentialsResult.errorResult(SecureCredentialsError.noData);
+                }
+                try {
+                    signatures = signer.sign(service, username, algorithm, secret, messages, digest);
+                } finally {
+                    Arrays.fill(secret, (byte) 0);
+                }
+            }
+
+            JSArray result = new JSArray();
+            for (byte[] signature : signatures) {
+                result.put(Base64.encodeToString(signature, Base64.NO_WRAP));
+            }
+            return new SecureCredentialsResult<>(true, result);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return SecureCredentialsResult.errorResult(SecureCredentialsError.unknown("error: " + e));
+        }
+    }
+
     public JsAble setCredential(String service, String username, String password, SecurityStrategyName securityStrategy) {
+        return setCredential(service, username, password, securityStrategy, KeyRotationPolicy.onStrategyChange);
+    }
+
+    public JsAble setCredential(String service, String username, String password, SecurityStrategyName securityStrategy, KeyRotationPolicy policy) {
+        return setCredential(service, username, password, new CredentialOptions(securityStrategy, policy));
+    }
+
+    public JsAble setCredential(String service, String username, String password, CredentialOptions options) {
         Log.d(TAG, "setCredential for " + username);
         if (service == null || username == null || password == null) {
             return SecureCredentialsResult.errorResult(SecureCredentialsError.missingParameters);
         }
-
-        try {
-            helper.createKey(getContext(), service, username, securityStrategy);
-        } catch (NoSuchProviderException | NoSuchAlgorithmException | InvalidAlgorithmParameterException | JSONException e) {
-            e.printStackTrace();
-            return SecureCredentialsResult.errorResult(SecureCredentialsError.unknown("error: " + e));
+        KeyPlacement placement = options.placement != null ? options.placement : helper.getKeyPlacement();
+        if (placement == KeyPlacement.STRONGBOX_REQUIRED && !SecureCredentialsHelper.hasStrongBox(getContext())) {
+            return SecureCredentialsResult.errorResult(SecureCredentialsError.unavailable("StrongBox is required but this device doesn't have it"));
         }
 
         try {
-            helper.setData(getContext(), service, username, password);
-        } catch (KeyStoreException | CertificateException | IOException | NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException | NoSuchProviderException | InvalidKeyException | InvalidKeySpecException | NoSuchAlgorithmException e) {
+            helper.setCredential(getContext(), service, username, password.getBytes(), options);
+        } catch (GeneralSecurityException | IOException | JSONException e) {
             e.printStackTrace();
             return SecureCredentialsResult.errorResult(SecureCredentialsError.unknown("error: " + e));
         }
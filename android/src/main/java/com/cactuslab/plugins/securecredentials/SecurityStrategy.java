@@ -1,5 +1,7 @@
 package com.cactuslab.plugins.securecredentials;
 
+import androidx.annotation.Nullable;
+
 import com.getcapacitor.JSObject;
 
 public class SecurityStrategy implements JsAble {
@@ -7,11 +9,21 @@ public class SecurityStrategy implements JsAble {
     private static final String SECURITY_LEVEL_KEY = "level";
     private static final String SECURITY_NAME_KEY = "name";
     private static final String SECURITY_BIOMETRICS_KEY = "biometrics";
+    private static final String BACKEND_KEY = "backend";
+    private static final String LATENCY_KEY = "latency";
 
     public final SecurityStrategyName name;
     public final SecurityLevel securityLevel;
     public final boolean biometrics;
 
+    /** Where new keys will be generated, if that's known */
+    @Nullable
+    KeyBackend backend;
+
+    /** Measured key generation and decrypt times for each backend, if they've been measured */
+    @Nullable
+    KeyPlacementBenchmark.Result latency;
+
     SecurityStrategy(SecurityStrategyName name, SecurityLevel securityLevel, boolean biometrics) {
         this.name = name;
         this.securityLevel = securityLevel;
@@ -24,6 +36,12 @@ public class SecurityStrategy implements JsAble {
         object.put(SECURITY_LEVEL_KEY, securityLevel.value);
         object.put(SECURITY_NAME_KEY, name.name);
         object.put(SECURITY_BIOMETRICS_KEY, biometrics);
+        if (backend != null) {
+            object.put(BACKEND_KEY, backend.name);
+        }
+        if (latency != null) {
+            object.put(LATENCY_KEY, latency.toJS());
+        }
         return object;
     }
 }
@@ -0,0 +1,81 @@
+package com.cactuslab.plugins.securecredentials;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.util.List;
+
+/**
+ * One page of the usernames stored for a service, in a stable order.
+ */
+public class UsernamePage implements JsAble {
+
+    private static final String USERNAMES_KEY = "usernames";
+    private static final String CURSOR_KEY = "cursor";
+
+    static class Entry implements JsAble {
+
+        private static final String USERNAME_KEY = "username";
+        private static final String STRATEGY_KEY = "strategy";
+        private static final String CREATED_KEY = "created";
+        private static final String KEY_CREATED_KEY = "keyCreated";
+        private static final String BACKEND_KEY = "backend";
+
+        final String username;
+        @Nullable
+        final MetaData metaData;
+
+        Entry(@NonNull String username, @Nullable MetaData metaData) {
+            this.username = username;
+            this.metaData = metaData;
+        }
+
+        @Override
+        public JSObject toJS() {
+            JSObject object = new JSObject();
+            object.put(USERNAME_KEY, username);
+            if (metaData != null) {
+                object.put(STRATEGY_KEY, metaData.securityLevel.name);
+                if (metaData.credentialCreated > 0) {
+                    object.put(CREATED_KEY, metaData.credentialCreated);
+                }
+                if (metaData.created > 0) {
+                    object.put(KEY_CREATED_KEY, metaData.created);
+                }
+                if (metaData.backend != null) {
+                    object.put(BACKEND_KEY, metaData.backend.name);
+                }
+            }
+            return object;
+        }
+    }
+
+    final List<Entry> entries;
+
+    /** Pass to the next request to continue after this page, or null if this is the last page. */
+    @Nullable
+    final String cursor;
+
+    UsernamePage(@NonNull List<Entry> entries, @Nullable String cursor) {
+        this.entries = entries;
+        this.cursor = cursor;
+    }
+
+    @Override
+    public JSObject toJS() {
+        JSArray usernames = new JSArray();
+        for (Entry entry : entries) {
+            usernames.put(entry.toJS());
+        }
+
+        JSObject object = new JSObject();
+        object.put(USERNAMES_KEY, usernames);
+        if (cursor != null) {
+            object.put(CURSOR_KEY, cursor);
+        }
+        return object;
+    }
+}
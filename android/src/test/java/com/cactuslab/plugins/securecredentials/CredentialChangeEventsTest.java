@@ -0,0 +1,77 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+
+import com.getcapacitor.JSObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers changes on a real scheduler, so timings are generous to keep the tests stable on a busy machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CredentialChangeEventsTest {
+
+    private static final String SERVICE = "com.example.service";
+    private static final long DEBOUNCE = 100;
+    private static final long MAX_WAIT = 300;
+
+    private final List<JSObject> events = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+    private CredentialChangeEvents changeEvents;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        changeEvents = new CredentialChangeEvents(executor, DEBOUNCE, MAX_WAIT, events::add);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void aBurstOfChangesIsOneEvent() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            changeEvents.onCredentialChanged(SERVICE, "user" + i, CredentialChangeNotifier.ChangeType.SET);
+        }
+        changeEvents.onCredentialChanged(SERVICE, "user0", CredentialChangeNotifier.ChangeType.REMOVE);
+        Thread.sleep(DEBOUNCE * 4);
+
+        assertEquals(1, events.size());
+        assertEquals(5, events.get(0).getJSONArray("changes").length());
+    }
+
+    @Test
+    public void aSteadyStreamOfChangesIsDeliveredAfterTheMaximumWait() throws Exception {
+        long start = System.nanoTime();
+        long streamMillis = MAX_WAIT * 4;
+        int i = 0;
+        // Changes arrive faster than the debounce, so without a maximum wait nothing would be delivered until they stop
+        while (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < streamMillis) {
+            changeEvents.onCredentialChanged(SERVICE, "user" + i++, CredentialChangeNotifier.ChangeType.SET);
+            Thread.sleep(DEBOUNCE / 5);
+        }
+
+        assertTrue("Expected events during the stream, got " + events.size(), events.size() >= 2);
+        Thread.sleep(DEBOUNCE * 4);
+        int delivered = 0;
+        for (JSObject event : events) {
+            delivered += event.getJSONArray("changes").length();
+        }
+        assertEquals(i, delivered);
+    }
+}
@@ -0,0 +1,63 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CredentialHandlesTest {
+
+    private static final String SERVICE = "com.example.service";
+    private static final String USERNAME = "user@example.com";
+    private static final long NOW = 1_700_000_000_000L;
+
+    private final CredentialHandles handles = new CredentialHandles();
+
+    @Test
+    public void handlesExpireAfterTheirTimeToLive() {
+        CredentialHandles.Handle handle = handles.create(SERVICE, USERNAME, new MetaData(SecurityStrategyName.STANDARD), 1000, NOW);
+        assertEquals(NOW + 1000, handle.expires);
+
+        assertSame(handle, handles.get(handle.id, NOW + 999));
+        assertNull(handles.get(handle.id, NOW + 1000));
+    }
+
+    @Test
+    public void handlesDontOutliveTheMaximumOrTheirCredential() {
+        CredentialHandles.Handle capped = handles.create(SERVICE, USERNAME, new MetaData(SecurityStrategyName.STANDARD), Long.MAX_VALUE / 2, NOW);
+        assertEquals(NOW + CredentialHandles.MAX_TTL, capped.expires);
+
+        MetaData expiring = new MetaData(SecurityStrategyName.STANDARD);
+        expiring.expires = NOW + 500;
+        CredentialHandles.Handle handle = handles.create(SERVICE, USERNAME, expiring, CredentialHandles.DEFAULT_TTL, NOW);
+        assertEquals(NOW + 500, handle.expires);
+        assertNotEquals(capped.id, handle.id);
+    }
+
+    @Test
+    public void releasedHandlesAreInvalid() {
+        CredentialHandles.Handle handle = handles.create(SERVICE, USERNAME, new MetaData(SecurityStrategyName.STANDARD), CredentialHandles.DEFAULT_TTL, NOW);
+        handles.release(handle.id);
+        assertNull(handles.get(handle.id, NOW));
+    }
+
+    @Test
+    public void handlesAreInvalidatedWhenTheirCredentialChanges() {
+        MetaData metaData = new MetaData(SecurityStrategyName.STANDARD);
+        CredentialHandles.Handle handle = handles.create(SERVICE, USERNAME, metaData, CredentialHandles.DEFAULT_TTL, NOW);
+        CredentialHandles.Handle other = handles.create(SERVICE, "other@example.com", metaData, CredentialHandles.DEFAULT_TTL, NOW);
+        CredentialHandles.Handle otherService = handles.create("com.example.other", USERNAME, metaData, CredentialHandles.DEFAULT_TTL, NOW);
+
+        handles.onCredentialChanged(SERVICE, USERNAME, CredentialChangeNotifier.ChangeType.SET);
+        assertNull(handles.get(handle.id, NOW));
+        assertSame(other, handles.get(other.id, NOW));
+
+        handles.onCredentialChanged(SERVICE, null, CredentialChangeNotifier.ChangeType.REMOVE);
+        assertNull(handles.get(other.id, NOW));
+        assertSame(otherService, handles.get(otherService.id, NOW));
+    }
+}
@@ -0,0 +1,111 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs several JVMs that each increment a counter in a shared file under the lock. If the lock ever lets two
+ * processes in at once, increments are lost and the counter falls short; if the sequence isn't coherent between
+ * processes it stops matching the counter.
+ *
+ * This covers the lock alone. Shared preferences can't be shared between JVMs, so reads made outside the lock, which
+ * the README describes as eventually consistent, aren't tested across processes.
+ */
+public class CrossProcessLockStressTest {
+
+    private static final int PROCESSES = 4;
+    private static final int ITERATIONS = 250;
+    private static final String LOCK_FILE = "store.lock";
+    private static final String COUNTER_FILE = "counter";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void nestedHoldsIncrementTheSequenceOnce() throws Exception {
+        CrossProcessLock lock = CrossProcessLock.forFile(new File(folder.getRoot(), LOCK_FILE));
+        assertEquals(0, lock.sequence());
+
+        try (CrossProcessLock.Hold outer = lock.acquire()) {
+            try (CrossProcessLock.Hold inner = lock.acquire()) {
+                assertEquals(0, lock.sequence());
+            }
+            assertEquals(0, lock.sequence());
+        }
+        assertEquals(1, lock.sequence());
+    }
+
+    @Test
+    public void concurrentProcessesDontLoseWrites() throws Exception {
+        assumeTrue("File locks are only stress tested on Linux", System.getProperty("os.name").startsWith("Linux"));
+
+        File lockFile = new File(folder.getRoot(), LOCK_FILE);
+        File counterFile = new File(folder.getRoot(), COUNTER_FILE);
+        writeCounter(counterFile, 0);
+
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        List<Process> processes = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < PROCESSES; i++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), CrossProcessLockStressTest.class.getName(),
+                    lockFile.getPath(), counterFile.getPath(), String.valueOf(ITERATIONS))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .start());
+        }
+
+        for (Process process : processes) {
+            assertTrue("Worker process timed out", process.waitFor(2, TimeUnit.MINUTES));
+            assertEquals("Worker process failed", 0, process.exitValue());
+        }
+        System.out.printf("%d processes made %d locked writes in %.0f ms%n", PROCESSES, PROCESSES * ITERATIONS, (System.nanoTime() - start) / 1e6);
+
+        assertEquals(PROCESSES * ITERATIONS, readCounter(counterFile));
+        assertEquals(PROCESSES * ITERATIONS, CrossProcessLock.forFile(lockFile).sequence());
+    }
+
+    /**
+     * A worker process. Exits with a non-zero status if the sequence and the counter ever disagree.
+     */
+    public static void main(String[] args) throws IOException {
+        CrossProcessLock lock = CrossProcessLock.forFile(new File(args[0]));
+        File counterFile = new File(args[1]);
+        int iterations = Integer.parseInt(args[2]);
+
+        for (int i = 0; i < iterations; i++) {
+            try (CrossProcessLock.Hold hold = lock.acquire()) {
+                long counter = readCounter(counterFile);
+                if (counter != lock.sequence()) {
+                    System.err.println("Sequence " + lock.sequence() + " doesn't match counter " + counter);
+                    System.exit(1);
+                }
+                writeCounter(counterFile, counter + 1);
+            }
+            if (i % 10 == 0) {
+                // Let the other processes interleave rather than running in turns
+                Thread.yield();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static long readCounter(File file) throws IOException {
+        return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim());
+    }
+
+    private static void writeCounter(File file, long value) throws IOException {
+        Files.write(file.toPath(), String.valueOf(value).getBytes(StandardCharsets.US_ASCII));
+    }
+}
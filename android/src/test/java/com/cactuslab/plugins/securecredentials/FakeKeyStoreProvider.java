@@ -0,0 +1,277 @@
+package com.cactuslab.plugins.securecredentials;
+
+import android.security.keystore.KeyGenParameterSpec;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyPairGeneratorSpi;
+import java.security.KeyStoreSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stands in for the AndroidKeyStore provider on the JVM, where Robolectric doesn't provide one. Keys are generated
+ * in software by the JVM's own providers and kept in memory, so the plugin's keystore code runs unchanged but without
+ * secure hardware's latency.
+ */
+public class FakeKeyStoreProvider extends Provider {
+
+    static final String NAME = "AndroidKeyStore";
+
+    private static final int DEFAULT_KEY_SIZE = 2048;
+    private static final int HMAC_KEY_BYTES = 32;
+
+    private static class Entry {
+        final Key key;
+        final Certificate certificate;
+        final Date created = new Date();
+
+        Entry(Key key, Certificate certificate) {
+            this.key = key;
+            this.certificate = certificate;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    FakeKeyStoreProvider() {
+        super(NAME, "1.0", "In-memory AndroidKeyStore for JVM tests");
+        putService(new Service(this, "KeyStore", NAME, Store.class.getName(), null, null) {
+            @Override
+            public Object newInstance(Object constructorParameter) {
+                return new Store();
+            }
+        });
+        putService(new Service(this, "KeyPairGenerator", "RSA", RsaGenerator.class.getName(), null, null) {
+            @Override
+            public Object newInstance(Object constructorParameter) {
+                return new RsaGenerator();
+            }
+        });
+        putService(new Service(this, "KeyGenerator", "HmacSHA256", HmacGenerator.class.getName(), null, null) {
+            @Override
+            public Object newInstance(Object constructorParameter) {
+                return new HmacGenerator();
+            }
+        });
+    }
+
+    /** Forget every key */
+    static void reset() {
+        entries.clear();
+    }
+
+    private static String alias(AlgorithmParameterSpec params) throws InvalidAlgorithmParameterException {
+        if (!(params instanceof KeyGenParameterSpec)) {
+            throw new InvalidAlgorithmParameterException("Expected a KeyGenParameterSpec");
+        }
+        return ((KeyGenParameterSpec) params).getKeystoreAlias();
+    }
+
+    private static class FakeCertificate extends Certificate {
+
+        private final PublicKey publicKey;
+
+        FakeCertificate(PublicKey publicKey) {
+            super("X.509");
+            this.publicKey = publicKey;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return publicKey.getEncoded();
+        }
+
+        @Override
+        public void verify(PublicKey key) {}
+
+        @Override
+        public void verify(PublicKey key, String sigProvider) {}
+
+        @Override
+        public String toString() {
+            return "FakeCertificate[" + publicKey.getAlgorithm() + "]";
+        }
+
+        @Override
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+    }
+
+    private static class Store extends KeyStoreSpi {
+
+        @Override
+        public Key engineGetKey(String alias, char[] password) {
+            Entry entry = entries.get(alias);
+            return entry != null ? entry.key : null;
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            Certificate certificate = engineGetCertificate(alias);
+            return certificate != null ? new Certificate[] { certificate } : null;
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            Entry entry = entries.get(alias);
+            return entry != null ? entry.certificate : null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            Entry entry = entries.get(alias);
+            return entry != null ? entry.created : null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) {
+            entries.put(alias, new Entry(key, chain != null && chain.length > 0 ? chain[0] : null));
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) {
+            entries.put(alias, new Entry(null, cert));
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            entries.remove(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            return Collections.enumeration(entries.keySet());
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            return entries.containsKey(alias);
+        }
+
+        @Override
+        public int engineSize() {
+            return entries.size();
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            Entry entry = entries.get(alias);
+            return entry != null && entry.key != null;
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            Entry entry = entries.get(alias);
+            return entry != null && entry.key == null;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (cert.equals(entry.getValue().certificate)) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {}
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {}
+    }
+
+    private static class RsaGenerator extends KeyPairGeneratorSpi {
+
+        private String alias;
+        private int keySize = DEFAULT_KEY_SIZE;
+
+        @Override
+        public void initialize(int keysize, SecureRandom random) {
+            this.keySize = keysize;
+        }
+
+        @Override
+        public void initialize(AlgorithmParameterSpec params, SecureRandom random) throws InvalidAlgorithmParameterException {
+            alias = alias(params);
+            int size = ((KeyGenParameterSpec) params).getKeySize();
+            keySize = size > 0 ? size : DEFAULT_KEY_SIZE;
+        }
+
+        @Override
+        public KeyPair generateKeyPair() {
+            try {
+                // Ask for the JVM's own provider; this one is registered last so it isn't picked
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(keySize);
+                KeyPair pair = generator.generateKeyPair();
+                if (alias != null) {
+                    entries.put(alias, new Entry(pair.getPrivate(), new FakeCertificate(pair.getPublic())));
+                }
+                return pair;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class HmacGenerator extends KeyGeneratorSpi {
+
+        private String alias;
+        private SecureRandom random = new SecureRandom();
+
+        @Override
+        protected void engineInit(SecureRandom random) {
+            this.random = random;
+        }
+
+        @Override
+        protected void engineInit(AlgorithmParameterSpec params, SecureRandom random) throws InvalidAlgorithmParameterException {
+            alias = alias(params);
+            if (random != null) {
+                this.random = random;
+            }
+        }
+
+        @Override
+        protected void engineInit(int keysize, SecureRandom random) {
+            this.random = random;
+        }
+
+        @Override
+        protected SecretKey engineGenerateKey() {
+            byte[] bytes = new byte[HMAC_KEY_BYTES];
+            random.nextBytes(bytes);
+            SecretKey key = new SecretKeySpec(bytes, "HmacSHA256");
+            if (alias != null) {
+                entries.put(alias, new Entry(key, null));
+            }
+            return key;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.cactuslab.plugins.securecredentials;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A plugin call that captures its result instead of sending it to a WebView. The result is serialised as the bridge
+ * would, so the cost of building and encoding it is part of the call.
+ */
+class FakePluginCall extends PluginCall {
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile JSObject result;
+    private volatile String message;
+
+    FakePluginCall(String methodName, JSObject data) {
+        super(null, "SecureCredentials", methodName, methodName, data);
+    }
+
+    @Override
+    public void resolve(JSObject data) {
+        // The bridge sends results to the WebView as JSON
+        data.toString();
+        result = data;
+        done.countDown();
+    }
+
+    @Override
+    public void resolve() {
+        resolve(new JSObject());
+    }
+
+    @Override
+    public void reject(String msg, String code, Exception ex, JSObject data) {
+        message = msg;
+        done.countDown();
+    }
+
+    /**
+     * Wait for the plugin to resolve the call.
+     * @throws AssertionError if the call was rejected or timed out
+     */
+    JSObject await() throws InterruptedException {
+        if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new AssertionError(getMethodName() + " timed out");
+        }
+        if (result == null) {
+            throw new AssertionError(getMethodName() + " was rejected: " + message);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+
+import com.getcapacitor.JSObject;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds both workers on blocking tasks, so that work can be queued before either is free to take it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class OperationSchedulerTest {
+
+    private static final String INTERACTIVE_WORKER = "SecureCredentials-interactive";
+
+    private final CountDownLatch releaseInteractiveWorker = new CountDownLatch(1);
+    private final CountDownLatch releaseWorker = new CountDownLatch(1);
+    private OperationScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        releaseInteractiveWorker.countDown();
+        releaseWorker.countDown();
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Occupy both workers. Each takes one of the two tasks, since the first blocks.
+     */
+    private void holdWorkers() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(2);
+        Runnable hold = () -> {
+            started.countDown();
+            try {
+                (Thread.currentThread().getName().equals(INTERACTIVE_WORKER) ? releaseInteractiveWorker : releaseWorker).await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        assertTrue(scheduler.submit(OperationScheduler.Lane.INTERACTIVE, hold));
+        assertTrue(scheduler.submit(OperationScheduler.Lane.INTERACTIVE, hold));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void queuedWorkRunsHighestPriorityFirst() throws Exception {
+        scheduler = new OperationScheduler(OperationScheduler.DEFAULT_QUEUE_DEPTH);
+        holdWorkers();
+
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(5);
+        for (OperationScheduler.Lane lane : new OperationScheduler.Lane[] {
+                OperationScheduler.Lane.MAINTENANCE, OperationScheduler.Lane.WRITE, OperationScheduler.Lane.INTERACTIVE,
+                OperationScheduler.Lane.WRITE, OperationScheduler.Lane.MAINTENANCE }) {
+            assertTrue(scheduler.submit(lane, () -> {
+                order.add(lane.name);
+                done.countDown();
+            }));
+        }
+
+        // Only the worker that serves every lane is free
+        releaseWorker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("interactive", "write", "write", "maintenance", "maintenance"), order);
+    }
+
+    @Test
+    public void readsDontWaitForWritesThatAreRunning() throws Exception {
+        scheduler = new OperationScheduler(OperationScheduler.DEFAULT_QUEUE_DEPTH);
+        CountDownLatch writing = new CountDownLatch(1);
+        assertTrue(scheduler.submit(OperationScheduler.Lane.WRITE, () -> {
+            writing.countDown();
+            try {
+                releaseWorker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch read = new CountDownLatch(1);
+        assertTrue(scheduler.submit(OperationScheduler.Lane.INTERACTIVE, read::countDown));
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callsAreRejectedWhenTheirLaneIsFull() throws Exception {
+        scheduler = new OperationScheduler(2);
+        holdWorkers();
+
+        assertTrue(scheduler.submit(OperationScheduler.Lane.WRITE, () -> {}));
+        assertTrue(scheduler.submit(OperationScheduler.Lane.WRITE, () -> {}));
+        assertFalse(scheduler.submit(OperationScheduler.Lane.WRITE, () -> {}));
+        // Other lanes have their own limit, and the plugin's own work isn't limited
+        assertTrue(scheduler.submit(OperationScheduler.Lane.MAINTENANCE, () -> {}));
+        scheduler.executor(OperationScheduler.Lane.WRITE).execute(() -> {});
+
+        JSObject write = scheduler.metrics().getJSObject("write");
+        assertEquals(3, write.getInt("queued"));
+        assertEquals(1, write.getInt("rejected"));
+
+        releaseWorker.countDown();
+        releaseInteractiveWorker.countDown();
+    }
+}
@@ -0,0 +1,104 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+
+import com.getcapacitor.JSObject;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class OperationTracerTest {
+
+    private final OperationTracer tracer = new OperationTracer();
+
+    @Test
+    public void nothingIsRecordedUntilEnabled() throws Exception {
+        try (OperationTracer.Span ignored = tracer.begin("getCredential")) {
+            tracer.beginAsync("queued").close();
+        }
+
+        JSObject trace = tracer.export();
+        assertEquals(0, trace.getJSONArray("traceEvents").length());
+        assertEquals("ms", trace.getString("displayTimeUnit"));
+    }
+
+    @Test
+    public void spansAreExportedAsCompleteEventsWithTheirThread() throws Exception {
+        tracer.setEnabled(true, OperationTracer.DEFAULT_CAPACITY);
+        try (OperationTracer.Span ignored = tracer.begin("getCredential")) {
+            tracer.begin("loadMetaData").close();
+        }
+
+        List<JSONObject> spans = events(tracer.export(), "X");
+        assertEquals(2, spans.size());
+        // Spans are recorded as they end, so the nested span comes first
+        assertEquals("loadMetaData", spans.get(0).getString("name"));
+        JSONObject outer = spans.get(1);
+        assertEquals("getCredential", outer.getString("name"));
+        assertEquals("SecureCredentials", outer.getString("cat"));
+        assertTrue(outer.getLong("ts") <= spans.get(0).getLong("ts"));
+        assertTrue(outer.getLong("dur") >= spans.get(0).getLong("dur"));
+        assertEquals(Thread.currentThread().getId(), outer.getLong("tid"));
+
+        List<JSONObject> threads = events(tracer.export(), "M");
+        assertEquals(1, threads.size());
+        assertEquals("thread_name", threads.get(0).getString("name"));
+        assertEquals(Thread.currentThread().getName(), threads.get(0).getJSONObject("args").getString("name"));
+    }
+
+    @Test
+    public void asyncSpansCanEndOnAnotherThread() throws Exception {
+        tracer.setEnabled(true, OperationTracer.DEFAULT_CAPACITY);
+        OperationTracer.Span queued = tracer.beginAsync("queued");
+        Thread worker = new Thread(queued::close);
+        worker.start();
+        worker.join();
+
+        JSObject trace = tracer.export();
+        List<JSONObject> begins = events(trace, "b");
+        List<JSONObject> ends = events(trace, "e");
+        assertEquals(1, begins.size());
+        assertEquals(1, ends.size());
+        assertEquals("queued", begins.get(0).getString("name"));
+        assertEquals(begins.get(0).getInt("id"), ends.get(0).getInt("id"));
+        assertTrue(ends.get(0).getLong("ts") >= begins.get(0).getLong("ts"));
+    }
+
+    @Test
+    public void onlyTheMostRecentSpansAreKept() throws Exception {
+        tracer.setEnabled(true, 3);
+        for (int i = 0; i < 5; i++) {
+            tracer.begin("span" + i).close();
+        }
+
+        List<JSONObject> spans = events(tracer.export(), "X");
+        assertEquals(3, spans.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("span" + (i + 2), spans.get(i).getString("name"));
+        }
+
+        tracer.clear();
+        assertEquals(0, tracer.export().getJSONArray("traceEvents").length());
+    }
+
+    private static List<JSONObject> events(JSObject trace, String phase) throws Exception {
+        JSONArray traceEvents = trace.getJSONArray("traceEvents");
+        List<JSONObject> events = new ArrayList<>();
+        for (int i = 0; i < traceEvents.length(); i++) {
+            JSONObject event = traceEvents.getJSONObject(i);
+            if (event.getString("ph").equals(phase)) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,182 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+
+/**
+ * Measures where compressing a credential before encrypting it pays off. Decrypting costs one RSA private key
+ * operation per 256 byte block of ciphertext, so compression helps once it removes at least one block and the
+ * inflate is cheaper than the block it saves.
+ *
+ * The timings are from the JVM's software RSA, which is much faster than secure hardware on a device, so on a device
+ * compression pays off sooner than this reports. The measurements are skipped unless run with -Dbenchmark=true.
+ */
+public class PayloadCompressionBenchmark {
+
+    private static final int KEY_LENGTH = 2048;
+    private static final int PLAINTEXT_BLOCK = KEY_LENGTH / 8 - 11;
+    private static final int CIPHERTEXT_BLOCK = KEY_LENGTH / 8;
+    private static final int ITERATIONS = 20;
+
+    private static KeyPair keyPair;
+    private static final Random random = new Random(42);
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(KEY_LENGTH);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] bundle = tokenBundle(3).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = PayloadCompression.compress(bundle, PayloadCompression.DEFAULT_THRESHOLD);
+        assertNotNull(compressed);
+        assertArrayEquals(bundle, PayloadCompression.decompress(compressed));
+    }
+
+    @Test
+    public void belowThresholdIsNotCompressed() {
+        byte[] small = "{\"access_token\":\"abc\"}".getBytes(StandardCharsets.UTF_8);
+        assertNull(PayloadCompression.compress(small, PayloadCompression.DEFAULT_THRESHOLD));
+    }
+
+    @Test
+    public void incompressibleIsNotCompressed() {
+        byte[] noise = new byte[2048];
+        random.nextBytes(noise);
+        assertNull(PayloadCompression.compress(noise, PayloadCompression.DEFAULT_THRESHOLD));
+    }
+
+    @Test
+    public void tokenBundlesNeedFewerBlocks() throws Exception {
+        Assume.assumeTrue("Run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+        String[][] payloads = {
+                { "refresh token", "{\"refresh_token\":\"" + opaque(48) + "\"}" },
+                { "access token", "{\"access_token\":\"" + jwt(0) + "\"}" },
+                { "access token, 4 claims", "{\"access_token\":\"" + jwt(4) + "\"}" },
+                { "access token, 12 claims", "{\"access_token\":\"" + jwt(12) + "\"}" },
+                { "token bundle", tokenBundle(0) },
+                { "token bundle, 12 claims", tokenBundle(12) },
+                { "token bundle, 40 claims", tokenBundle(40) },
+        };
+
+        System.out.println("payload                  plaintext  blocks  compressed  blocks  decrypt ms  compressed decrypt ms");
+        Integer crossover = null;
+        for (String[] payload : payloads) {
+            byte[] plaintext = payload[1].getBytes(StandardCharsets.UTF_8);
+            byte[] compressed = PayloadCompression.compress(plaintext, 0);
+            byte[] stored = compressed != null ? compressed : plaintext;
+
+            byte[] rawCiphertext = encrypt(plaintext);
+            byte[] compressedCiphertext = encrypt(stored);
+
+            double rawMillis = time(() -> decrypt(rawCiphertext));
+            double compressedMillis = time(() -> {
+                byte[] decrypted = decrypt(compressedCiphertext);
+                if (compressed != null) {
+                    PayloadCompression.decompress(decrypted);
+                }
+            });
+
+            System.out.printf("%-23s  %9d  %6d  %10d  %6d  %10.2f  %21.2f%n", payload[0], plaintext.length, blocks(plaintext.length),
+                    stored.length, blocks(stored.length), rawMillis, compressedMillis);
+            if (crossover == null && blocks(stored.length) < blocks(plaintext.length)) {
+                crossover = plaintext.length;
+            }
+        }
+        System.out.println("Compression first saves an RSA block at " + crossover + " bytes of plaintext");
+
+        assertNotNull("Typical token bundles should compress into fewer RSA blocks", crossover);
+        byte[] typical = tokenBundle(12).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = PayloadCompression.compress(typical, PayloadCompression.DEFAULT_THRESHOLD);
+        assertNotNull(compressed);
+        assertTrue(blocks(compressed.length) < blocks(typical.length));
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    private static double time(Operation operation) throws Exception {
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+            operation.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    private static int blocks(int plaintextLength) {
+        return (plaintextLength + PLAINTEXT_BLOCK - 1) / PLAINTEXT_BLOCK;
+    }
+
+    private static byte[] encrypt(byte[] data) throws Exception {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int position = 0; position < data.length; position += PLAINTEXT_BLOCK) {
+            output.write(cipher.doFinal(data, position, Math.min(PLAINTEXT_BLOCK, data.length - position)));
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] data) throws Exception {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int position = 0; position < data.length; position += CIPHERTEXT_BLOCK) {
+            output.write(cipher.doFinal(data, position, CIPHERTEXT_BLOCK));
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * An OAuth token response with an access token and ID token as signed JWTs carrying the given number of extra
+     * claims, and an opaque refresh token.
+     */
+    private static String tokenBundle(int claims) {
+        return "{\"access_token\":\"" + jwt(claims) + "\","
+                + "\"id_token\":\"" + jwt(claims / 2) + "\","
+                + "\"refresh_token\":\"" + opaque(48) + "\","
+                + "\"token_type\":\"Bearer\",\"expires_in\":3600,\"scope\":\"openid profile email offline_access\"}";
+    }
+
+    private static String jwt(int claims) {
+        StringBuilder payload = new StringBuilder("{\"iss\":\"https://auth.example.com/\",\"sub\":\"auth0|")
+                .append(opaque(12))
+                .append("\",\"aud\":[\"https://api.example.com\",\"https://auth.example.com/userinfo\"],\"iat\":1700000000,\"exp\":1700003600");
+        for (int i = 0; i < claims; i++) {
+            payload.append(",\"https://example.com/claims/permission_").append(i).append("\":\"read:resource_").append(i).append('"');
+        }
+        payload.append('}');
+
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String header = encoder.encodeToString("{\"alg\":\"RS256\",\"typ\":\"JWT\",\"kid\":\"k1\"}".getBytes(StandardCharsets.UTF_8));
+        byte[] signature = new byte[256];
+        random.nextBytes(signature);
+        return header + "." + encoder.encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8)) + "." + encoder.encodeToString(signature);
+    }
+
+    private static String opaque(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,284 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import com.getcapacitor.FakePluginConfig;
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+import com.getcapacitor.PluginConfig;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Drives the plugin's methods end to end, as the bridge would, through a scripted workload of several services each
+ * with several users: save everyone's credentials, repeatedly list and read them, refresh them, then remove each
+ * service. Each call is timed from the plugin method being invoked until its result has been serialised, so the
+ * numbers cover scheduling, the helper, and building the result with {@link SecureCredentialsResult#toJS()}.
+ *
+ * Keys come from {@link FakeKeyStoreProvider}, so the keystore's own latency is the JVM's software RSA rather than
+ * secure hardware; regressions in the plugin layer show up here rather than being lost in keystore noise. The
+ * workload can be scaled with the pluginBenchmark.services, pluginBenchmark.users and pluginBenchmark.rounds
+ * system properties. It's skipped unless run with -Dbenchmark=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class PluginLatencyBenchmark {
+
+    private static final int SERVICES = Integer.getInteger("pluginBenchmark.services", 4);
+    private static final int USERS = Integer.getInteger("pluginBenchmark.users", 12);
+    private static final int ROUNDS = Integer.getInteger("pluginBenchmark.rounds", 5);
+    private static final int TO_JS_ITERATIONS = 1000;
+
+    private final Map<String, Samples> samples = new LinkedHashMap<>();
+    private SecureCredentialsPlugin plugin;
+
+    /** Latency and allocation of each call to one operation */
+    private static class Samples {
+        private long[] nanos = new long[64];
+        private long[] bytes = new long[64];
+        private int count;
+
+        void add(long elapsed, long allocated) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+                bytes = Arrays.copyOf(bytes, count * 2);
+            }
+            nanos[count] = elapsed;
+            bytes[count] = allocated;
+            count++;
+        }
+
+        double percentileMillis(int percentile) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return sorted[Math.max(rank, 0)] / 1e6;
+        }
+
+        double meanKilobytes() {
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += bytes[i];
+            }
+            return total / 1024.0 / count;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("Run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+        Security.addProvider(new FakeKeyStoreProvider());
+
+        Context context = RuntimeEnvironment.getApplication();
+        PluginConfig config = FakePluginConfig.create(new JSONObject());
+        // Stands in for the bridge, which would otherwise supply the context and config
+        plugin = new SecureCredentialsPlugin() {
+            @Override
+            public Context getContext() {
+                return context;
+            }
+
+            @Override
+            public PluginConfig getConfig() {
+                return config;
+            }
+        };
+        plugin.load();
+    }
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.handleOnDestroy();
+        }
+        Security.removeProvider(FakeKeyStoreProvider.NAME);
+        FakeKeyStoreProvider.reset();
+    }
+
+    @Test
+    public void scriptedWorkload() throws Exception {
+        // Warm up class loading and the JIT on a service that isn't measured
+        for (int i = 0; i < 3; i++) {
+            call(plugin::setCredential, "setCredential", credentialData("warmup", "user", "password" + i));
+            call(plugin::getCredential, "getCredential", userData("warmup", "user"));
+            call(plugin::getUsernames, "getUsernames", serviceData("warmup"));
+        }
+        call(plugin::removeCredentials, "removeCredentials", serviceData("warmup"));
+        samples.clear();
+
+        for (int s = 0; s < SERVICES; s++) {
+            for (int u = 0; u < USERS; u++) {
+                JSObject result = measure(plugin::setCredential, "setCredential", credentialData(service(s), username(u), token(s, u, 0)));
+                assertTrue(result.getBoolean("success"));
+            }
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int s = 0; s < SERVICES; s++) {
+                JSObject usernames = measure(plugin::getUsernames, "getUsernames", serviceData(service(s)));
+                assertEquals(USERS, usernames.getJSONArray("result").length());
+
+                for (int u = 0; u < USERS; u++) {
+                    JSObject result = measure(plugin::getCredential, "getCredential", userData(service(s), username(u)));
+                    assertEquals(token(s, u, 0), result.getJSONObject("result").getString("password"));
+                }
+            }
+        }
+
+        // Refreshing a credential with the same strategy reuses its key
+        for (int s = 0; s < SERVICES; s++) {
+            for (int u = 0; u < USERS; u++) {
+                measure(plugin::setCredential, "setCredential (refresh)", credentialData(service(s), username(u), token(s, u, 1)));
+            }
+        }
+        for (int s = 0; s < SERVICES; s++) {
+            JSObject result = measure(plugin::getCredential, "getCredential", userData(service(s), username(0)));
+            assertEquals(token(s, 0, 1), result.getJSONObject("result").getString("password"));
+        }
+
+        for (int s = 0; s < SERVICES; s++) {
+            JSObject result = measure(plugin::removeCredentials, "removeCredentials", serviceData(service(s)));
+            assertTrue(result.getBoolean("success"));
+            assertEquals(0, call(plugin::getUsernames, "getUsernames", serviceData(service(s))).getJSONArray("result").length());
+        }
+
+        measureToJS();
+        report();
+    }
+
+    /**
+     * Building and serialising results on their own, without the helper, so changes in the result classes stand out.
+     */
+    private void measureToJS() {
+        String[] usernames = new String[USERS];
+        for (int u = 0; u < USERS; u++) {
+            usernames[u] = username(u);
+        }
+        JSObject credential = new JSObject();
+        credential.put("username", username(0));
+        credential.put("password", token(0, 0, 0));
+
+        for (int i = 0; i < TO_JS_ITERATIONS; i++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            new SecureCredentialsResult<>(true, usernames).toJS().toString();
+            samples("toJS usernames").add(System.nanoTime() - start, allocatedBytes() - allocated);
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            new SecureCredentialsResult<>(true, credential).toJS().toString();
+            samples("toJS credential").add(System.nanoTime() - start, allocatedBytes() - allocated);
+        }
+    }
+
+    private void report() {
+        System.out.printf("%d services x %d users, %d read rounds%n", SERVICES, USERS, ROUNDS);
+        System.out.println("operation                  calls    p50 ms    p99 ms  alloc KB/call");
+        for (Map.Entry<String, Samples> entry : samples.entrySet()) {
+            Samples operation = entry.getValue();
+            System.out.printf("%-25s %6d %9.3f %9.3f %14.1f%n", entry.getKey(), operation.count,
+                    operation.percentileMillis(50), operation.percentileMillis(99), operation.meanKilobytes());
+        }
+    }
+
+    private JSObject measure(Consumer<PluginCall> method, String operation, JSObject data) throws InterruptedException {
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        JSObject result = call(method, operation, data);
+        samples(operation).add(System.nanoTime() - start, allocatedBytes() - allocated);
+        return result;
+    }
+
+    private static JSObject call(Consumer<PluginCall> method, String operation, JSObject data) throws InterruptedException {
+        // The method name is what the bridge would dispatch on, without any label suffix
+        FakePluginCall call = new FakePluginCall(operation.split(" ")[0], data);
+        method.accept(call);
+        return call.await();
+    }
+
+    private Samples samples(String operation) {
+        Samples operationSamples = samples.get(operation);
+        if (operationSamples == null) {
+            operationSamples = new Samples();
+            samples.put(operation, operationSamples);
+        }
+        return operationSamples;
+    }
+
+    /**
+     * Bytes allocated by every live thread, as calls run on the plugin's worker threads rather than the caller's.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        long total = 0;
+        for (long bytes : hotspot.getThreadAllocatedBytes(hotspot.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static String service(int s) {
+        return "com.example.service" + s;
+    }
+
+    private static String username(int u) {
+        return "user" + u + "@example.com";
+    }
+
+    /** A token shaped like an OAuth access token, unique to the user and version */
+    private static String token(int s, int u, int version) {
+        StringBuilder builder = new StringBuilder("eyJhbGciOiJSUzI1NiJ9.");
+        for (int i = 0; i < 12; i++) {
+            builder.append(Integer.toHexString((s * 31 + u) * 131 + version * 7 + i));
+        }
+        return builder.append(".signature").toString();
+    }
+
+    private static JSObject serviceData(String service) {
+        JSObject data = new JSObject();
+        data.put("service", service);
+        return data;
+    }
+
+    private static JSObject userData(String service, String username) {
+        JSObject data = serviceData(service);
+        data.put("username", username);
+        return data;
+    }
+
+    private static JSObject credentialData(String service, String username, String password) {
+        JSObject credential = new JSObject();
+        credential.put("username", username);
+        credential.put("password", password);
+        JSObject options = new JSObject();
+        options.put("strategy", SecurityStrategyName.STANDARD.name);
+        JSObject data = serviceData(service);
+        data.put("credential", credential);
+        data.put("options", options);
+        return data;
+    }
+}
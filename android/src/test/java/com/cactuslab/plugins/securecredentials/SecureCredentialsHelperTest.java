@@ -0,0 +1,255 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Exercises the helper against Robolectric's shared preferences and {@link FakeKeyStoreProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class SecureCredentialsHelperTest {
+
+    private static final String SERVICE = "com.example.service";
+    private static final String USERNAME = "user@example.com";
+    private static final byte[] VALUE = "secret".getBytes(StandardCharsets.UTF_8);
+
+    private Context context;
+    private SecureCredentialsHelper helper;
+
+    @Before
+    public void setUp() {
+        Security.addProvider(new FakeKeyStoreProvider());
+        context = RuntimeEnvironment.getApplication();
+        helper = new SecureCredentialsHelper();
+    }
+
+    @After
+    public void tearDown() {
+        Security.removeProvider(FakeKeyStoreProvider.NAME);
+        FakeKeyStoreProvider.reset();
+    }
+
+    @Test
+    public void anUnchangedValueIsNotWrittenAgain() throws Exception {
+        assertTrue(helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange));
+        PrivateKey original = helper.getPrivateKey(context, SERVICE, USERNAME);
+        String ciphertext = helper.getEncryptedData(context, SERVICE, USERNAME);
+
+        assertFalse(helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange));
+        assertEquals(original, helper.getPrivateKey(context, SERVICE, USERNAME));
+        assertEquals(ciphertext, helper.getEncryptedData(context, SERVICE, USERNAME));
+
+        // A new value is encrypted with the existing key
+        byte[] changed = "changed".getBytes(StandardCharsets.UTF_8);
+        assertTrue(helper.setCredential(context, SERVICE, USERNAME, changed, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange));
+        assertEquals(original, helper.getPrivateKey(context, SERVICE, USERNAME));
+        assertArrayEquals(changed, helper.decryptCredential(context, SERVICE, USERNAME));
+    }
+
+    @Test
+    public void aKeyThatIsDueIsReplacedUnderANewAlias() throws Exception {
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        MetaData original = helper.loadMetaData(context, SERVICE, USERNAME);
+        String originalAlias = context.getPackageName() + "." + SERVICE + "." + USERNAME;
+        KeyStore keyStore = KeyStore.getInstance(FakeKeyStoreProvider.NAME);
+        keyStore.load(null);
+        assertTrue(keyStore.containsAlias(originalAlias));
+        Thread.sleep(5);
+
+        assertTrue(helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, new KeyRotationPolicy(false, 1)));
+        MetaData rotated = helper.loadMetaData(context, SERVICE, USERNAME);
+        assertEquals(original.keyGeneration + 1, rotated.keyGeneration);
+        assertEquals(original.credentialCreated, rotated.credentialCreated);
+        assertFalse(keyStore.containsAlias(originalAlias));
+        assertTrue(keyStore.containsAlias(originalAlias + "#" + rotated.keyGeneration));
+        assertArrayEquals(VALUE, helper.decryptCredential(context, SERVICE, USERNAME));
+        assertTrue(helper.checkConsistency(context, false).orphanedKeys.isEmpty());
+    }
+
+    @Test
+    public void largeValuesAreStoredInTheirOwnFile() throws Exception {
+        // Any RSA ciphertext is longer than this
+        helper.setLargeValueThreshold(64);
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        assertTrue(preferences(SERVICE).getString(USERNAME, "").startsWith("@"));
+        File[] files = new File(context.getNoBackupFilesDir(), "SecureCredentialsHelper").listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        assertArrayEquals(VALUE, helper.decryptCredential(context, SERVICE, USERNAME));
+
+        // The preference still refers to the file, but without it the value has to be written again
+        assertTrue(files[0].delete());
+        assertTrue(helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange));
+        assertTrue(files[0].exists());
+        assertArrayEquals(VALUE, helper.decryptCredential(context, SERVICE, USERNAME));
+
+        helper.setLargeValueThreshold(SecureCredentialsHelper.DEFAULT_LARGE_VALUE_THRESHOLD);
+        byte[] changed = "changed".getBytes(StandardCharsets.UTF_8);
+        helper.setCredential(context, SERVICE, USERNAME, changed, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        assertFalse(preferences(SERVICE).getString(USERNAME, "").startsWith("@"));
+        assertFalse(files[0].exists());
+        assertArrayEquals(changed, helper.decryptCredential(context, SERVICE, USERNAME));
+    }
+
+    @Test
+    public void credentialsNeedingAuthenticationAreRotatedWhenNextSet() throws Exception {
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STRONG_USER_PRESENCE, KeyRotationPolicy.onStrategyChange);
+        PrivateKey original = helper.getPrivateKey(context, SERVICE, USERNAME);
+
+        assertEquals(SecureCredentialsHelper.RotationOutcome.REQUIRES_AUTHENTICATION,
+                helper.rotateCredential(context, SERVICE, USERNAME, KeyRotationPolicy.always));
+        assertTrue(helper.loadMetaData(context, SERVICE, USERNAME).rotationPending);
+        assertEquals(original, helper.getPrivateKey(context, SERVICE, USERNAME));
+
+        // The same value under the same strategy would normally be skipped, but the pending rotation forces a write
+        assertTrue(helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STRONG_USER_PRESENCE, KeyRotationPolicy.onStrategyChange));
+        assertFalse(helper.loadMetaData(context, SERVICE, USERNAME).rotationPending);
+        assertNotEquals(original, helper.getPrivateKey(context, SERVICE, USERNAME));
+
+        assertFalse(helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STRONG_USER_PRESENCE, KeyRotationPolicy.onStrategyChange));
+    }
+
+    @Test
+    public void expiredCredentialsAreNotListedOrCounted() throws Exception {
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        CredentialOptions expired = new CredentialOptions(SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        expired.expires = System.currentTimeMillis() - 1;
+        helper.setCredential(context, SERVICE, "expired@example.com", VALUE, expired);
+        helper.setCredential(context, "com.example.expired", USERNAME, VALUE, expired);
+
+        assertEquals(Collections.singletonList(USERNAME), Arrays.asList(helper.usernamesForService(context, SERVICE)));
+        UsernamePage page = helper.usernamesPage(context, SERVICE, null, null, 10, true);
+        assertEquals(1, page.entries.size());
+        assertEquals(USERNAME, page.entries.get(0).username);
+        assertNull(page.cursor);
+        assertEquals(1, helper.countCredentials(context, SERVICE));
+        assertEquals(1, helper.countCredentials(context, null));
+        assertEquals(Collections.singletonList(SERVICE), helper.services(context));
+    }
+
+    @Test
+    public void credentialsWithAKeyButNoCiphertextOrMetaDataAreReported() throws Exception {
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        helper.setCredential(context, SERVICE, "other@example.com", VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        preferences(SERVICE).edit().remove(USERNAME).commit();
+        preferences(SERVICE + ".SecureCredentialsHelper").edit().remove("other@example.com").commit();
+
+        ConsistencyReport report = helper.checkConsistency(context, true);
+        assertEquals(2, report.missingCiphertext.size());
+        assertTrue(report.orphanedKeys.isEmpty());
+        assertTrue(report.orphanedCiphertext.isEmpty());
+        assertTrue(report.staleEntries.isEmpty());
+
+        assertEquals(0, helper.countCredentials(context, SERVICE));
+        assertNull(helper.getPrivateKey(context, SERVICE, USERNAME));
+        assertTrue(helper.checkConsistency(context, false).missingCiphertext.isEmpty());
+    }
+
+    @Test
+    public void readableCredentialsMissingFromTheIndexAreIndexedAgain() throws Exception {
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        helper.setCredential(context, "com.example.keyed", USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        preferences(CredentialIndex.INDEX_PREFERENCES).edit().clear().commit();
+        // Without metadata the second service can only be found through its key, and its credential can't be read
+        context.deleteSharedPreferences("com.example.keyed.SecureCredentialsHelper");
+        assertTrue(helper.services(context).isEmpty());
+
+        ConsistencyReport report = helper.checkConsistency(context, true);
+        assertEquals(1, report.unindexedCredentials.size());
+        assertEquals(SERVICE, report.unindexedCredentials.get(0)[0]);
+        assertEquals(1, report.orphanedCiphertext.size());
+        assertEquals("com.example.keyed", report.orphanedCiphertext.get(0)[0]);
+        assertEquals(1, report.orphanedKeys.size());
+
+        assertEquals(Collections.singletonList(SERVICE), helper.services(context));
+        assertEquals(1, helper.countCredentials(context, SERVICE));
+        assertArrayEquals(VALUE, helper.decryptCredential(context, SERVICE, USERNAME));
+        assertFalse(preferences("com.example.keyed").contains(USERNAME));
+
+        ConsistencyReport repaired = helper.checkConsistency(context, false);
+        assertTrue(repaired.unindexedCredentials.isEmpty());
+        assertTrue(repaired.orphanedCiphertext.isEmpty());
+        assertTrue(repaired.orphanedKeys.isEmpty());
+    }
+
+    @Test
+    public void keysThatDontBelongToACredentialAreLeftAlone() throws Exception {
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        // Keys the app made under its package name, one of them under a service's name
+        String[] appAliases = { context.getPackageName() + ".signing", context.getPackageName() + "." + SERVICE + ".app" };
+        KeyStore keyStore = KeyStore.getInstance(FakeKeyStoreProvider.NAME);
+        keyStore.load(null);
+        for (String alias : appAliases) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", FakeKeyStoreProvider.NAME);
+            generator.initialize(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_SIGN).build());
+            generator.generateKeyPair();
+        }
+
+        ConsistencyReport report = helper.checkConsistency(context, true);
+        assertTrue(report.orphanedKeys.isEmpty());
+        for (String alias : appAliases) {
+            assertTrue(keyStore.containsAlias(alias));
+        }
+        assertArrayEquals(VALUE, helper.decryptCredential(context, SERVICE, USERNAME));
+    }
+
+    @Test
+    public void credentialCreationTimeIsKeptWhenTheKeyIsReplaced() throws Exception {
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        long created = helper.loadMetaData(context, SERVICE, USERNAME).credentialCreated;
+        Thread.sleep(5);
+
+        assertEquals(SecureCredentialsHelper.RotationOutcome.ROTATED, helper.rotateCredential(context, SERVICE, USERNAME, KeyRotationPolicy.always));
+        Thread.sleep(5);
+        helper.setCredential(context, SERVICE, USERNAME, "changed".getBytes(StandardCharsets.UTF_8), SecurityStrategyName.STANDARD, KeyRotationPolicy.always);
+
+        MetaData metaData = helper.loadMetaData(context, SERVICE, USERNAME);
+        assertEquals(created, metaData.credentialCreated);
+        assertTrue(metaData.created > created);
+        UsernamePage.Entry entry = helper.usernamesPage(context, SERVICE, null, null, 10, true).entries.get(0);
+        assertEquals(created, entry.toJS().getLong("created"));
+        assertEquals(metaData.created, entry.toJS().getLong("keyCreated"));
+    }
+
+    @Test
+    public void aPlacementTheDeviceCantSatisfyLeavesTheExistingKey() throws Exception {
+        helper.setCredential(context, SERVICE, USERNAME, VALUE, SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        PrivateKey original = helper.getPrivateKey(context, SERVICE, USERNAME);
+
+        // Robolectric's device has no StrongBox
+        CredentialOptions strongBox = new CredentialOptions(SecurityStrategyName.STANDARD, KeyRotationPolicy.onStrategyChange);
+        strongBox.placement = KeyPlacement.STRONGBOX_REQUIRED;
+        assertThrows(InvalidAlgorithmParameterException.class,
+                () -> helper.setCredential(context, SERVICE, USERNAME, "changed".getBytes(StandardCharsets.UTF_8), strongBox));
+
+        assertEquals(original, helper.getPrivateKey(context, SERVICE, USERNAME));
+        assertArrayEquals(VALUE, helper.decryptCredential(context, SERVICE, USERNAME));
+    }
+
+    private SharedPreferences preferences(String name) {
+        return context.getSharedPreferences(name, Context.MODE_PRIVATE);
+    }
+}
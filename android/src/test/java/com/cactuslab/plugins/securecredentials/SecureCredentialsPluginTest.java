@@ -0,0 +1,190 @@
+package com.cactuslab.plugins.securecredentials;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+
+import com.getcapacitor.FakePluginConfig;
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginConfig;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.security.Security;
+
+/**
+ * Exercises the plugin's methods as the bridge would call them, with {@link FakeKeyStoreProvider} for keys.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class SecureCredentialsPluginTest {
+
+    private static final String SERVICE = "com.example.service";
+    private static final String USERNAME = "user@example.com";
+    private static final String PASSWORD = "secret";
+
+    private SecureCredentialsPlugin plugin;
+
+    @Before
+    public void setUp() {
+        Security.addProvider(new FakeKeyStoreProvider());
+    }
+
+    @After
+    public void tearDown() {
+        if (plugin != null) {
+            plugin.handleOnDestroy();
+        }
+        Security.removeProvider(FakeKeyStoreProvider.NAME);
+        FakeKeyStoreProvider.reset();
+    }
+
+    private JSObject resolve(String handle) throws Exception {
+        JSObject data = new JSObject();
+        data.put("handle", handle);
+        FakePluginCall call = new FakePluginCall("resolveHandle", data);
+        plugin.resolveHandle(call);
+        return call.await();
+    }
+
+    private JSObject sign() throws Exception {
+        JSObject data = new JSObject();
+        data.put("service", SERVICE);
+        data.put("username", USERNAME);
+        data.put("algorithm", "HmacSHA256");
+        data.put("messages", JSArray.from(new String[] { "message" }));
+        FakePluginCall call = new FakePluginCall("signWithCredential", data);
+        plugin.signWithCredential(call);
+        return call.await();
+    }
+
+    private JSObject setCredentialData(JSObject options) {
+        JSObject credential = new JSObject();
+        credential.put("username", USERNAME);
+        credential.put("password", PASSWORD);
+        options.put("strategy", SecurityStrategyName.STANDARD.name);
+        JSObject data = new JSObject();
+        data.put("service", SERVICE);
+        data.put("credential", credential);
+        data.put("options", options);
+        return data;
+    }
+
+    private void load(JSONObject configJSON) {
+        Context context = RuntimeEnvironment.getApplication();
+        PluginConfig config = FakePluginConfig.create(configJSON);
+        // Stands in for the bridge, which would otherwise supply the context and config
+        plugin = new SecureCredentialsPlugin() {
+            @Override
+            public Context getContext() {
+                return context;
+            }
+
+            @Override
+            public PluginConfig getConfig() {
+                return config;
+            }
+        };
+        plugin.load();
+    }
+
+    @Test
+    public void invalidKeyPlacementConfigFallsBackToTheDefault() throws Exception {
+        JSONObject config = new JSONObject().put("keyPlacement", "strongbox");
+        assertEquals(KeyPlacement.STRONGBOX_AVOIDED, SecureCredentialsPlugin.configuredKeyPlacement(FakePluginConfig.create(config)));
+
+        load(config);
+
+        FakePluginCall set = new FakePluginCall("setCredential", setCredentialData(new JSObject()));
+        plugin.setCredential(set);
+        assertTrue(set.await().getBoolean("success"));
+
+        JSObject query = new JSObject();
+        query.put("service", SERVICE);
+        query.put("username", USERNAME);
+        FakePluginCall get = new FakePluginCall("getCredential", query);
+        plugin.getCredential(get);
+        assertEquals(PASSWORD, get.await().getJSONObject("result").getString("password"));
+    }
+
+    @Test
+    public void invalidKeyPlacementOptionFails() throws Exception {
+        load(new JSONObject());
+
+        JSObject options = new JSObject();
+        options.put("placement", "strongbox");
+        FakePluginCall set = new FakePluginCall("setCredential", setCredentialData(options));
+        plugin.setCredential(set);
+        JSObject result = set.await();
+        assertFalse(result.getBoolean("success"));
+        assertEquals("params", result.getJSONObject("error").getString("code"));
+
+        JSObject query = new JSObject();
+        query.put("service", SERVICE);
+        FakePluginCall count = new FakePluginCall("countCredentials", query);
+        plugin.countCredentials(count);
+        assertEquals(0, count.await().getInt("result"));
+    }
+
+    @Test
+    public void expiredCredentialsCantBeUsedToSign() throws Exception {
+        load(new JSONObject());
+        JSObject options = new JSObject();
+        options.put("expiresIn", 500);
+        FakePluginCall set = new FakePluginCall("setCredential", setCredentialData(options));
+        plugin.setCredential(set);
+        assertTrue(set.await().getBoolean("success"));
+
+        // The first signature caches the initialised key
+        assertTrue(sign().getBoolean("success"));
+        Thread.sleep(600);
+
+        JSObject expired = sign();
+        assertFalse(expired.getBoolean("success"));
+        assertEquals("no data", expired.getJSONObject("error").getString("code"));
+    }
+
+    @Test
+    public void handlesResolveToTheCredentialUntilItChanges() throws Exception {
+        load(new JSONObject());
+        FakePluginCall set = new FakePluginCall("setCredential", setCredentialData(new JSObject()));
+        plugin.setCredential(set);
+        assertTrue(set.await().getBoolean("success"));
+
+        JSObject query = new JSObject();
+        query.put("service", SERVICE);
+        query.put("username", USERNAME);
+        FakePluginCall get = new FakePluginCall("getCredentialHandle", query);
+        plugin.getCredentialHandle(get);
+        JSObject handle = get.await().getJSObject("result");
+        assertEquals(USERNAME, handle.getString("username"));
+        assertFalse(handle.has("password"));
+
+        JSObject resolved = resolve(handle.getString("handle"));
+        assertEquals(PASSWORD, resolved.getJSONObject("result").getString("password"));
+
+        // Setting the credential again invalidates its handles
+        JSObject options = new JSObject();
+        options.put("rotateKey", true);
+        FakePluginCall reset = new FakePluginCall("setCredential", setCredentialData(options));
+        plugin.setCredential(reset);
+        assertTrue(reset.await().getBoolean("success"));
+        JSObject invalidated = resolve(handle.getString("handle"));
+        assertFalse(invalidated.getBoolean("success"));
+        assertEquals("no data", invalidated.getJSONObject("error").getString("code"));
+    }
+
+    @Test
+    public void validKeyPlacementConfigIsUsed() throws Exception {
+        assertEquals(KeyPlacement.AUTO, SecureCredentialsPlugin.configuredKeyPlacement(FakePluginConfig.create(new JSONObject().put("keyPlacement", "auto"))));
+        assertEquals(KeyPlacement.STRONGBOX_AVOIDED, SecureCredentialsPlugin.configuredKeyPlacement(FakePluginConfig.create(new JSONObject())));
+    }
+}
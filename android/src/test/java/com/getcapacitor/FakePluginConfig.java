@@ -0,0 +1,15 @@
+package com.getcapacitor;
+
+import org.json.JSONObject;
+
+/**
+ * Creates plugin configs for JVM tests, which run plugins without a bridge to read them from capacitor.config.
+ */
+public class FakePluginConfig {
+
+    private FakePluginConfig() {}
+
+    public static PluginConfig create(JSONObject config) {
+        return new PluginConfig(config);
+    }
+}
@@ -1,9 +1,15 @@
+import type { PluginListenerHandle } from '@capacitor/core';
+
 export enum SecurityErrorCode {
     FailedToAccess = 'failed to access',
     NoData = 'no data',
     Unknown = 'unknown',
     Unavailable = 'unavailable',
     Params = 'params',
+    /**
+     * Too many calls of the same kind are waiting to run. Try again later. Android only.
+     */
+    Busy = 'busy',
 }
 
 export enum SecurityLevel {
@@ -28,10 +34,42 @@ type Opaque<K, T> = T & { __TYPE__: K }
 
 export type SecurityStrategyName = Opaque<'SecurityStrategyName', string>
 
+/**
+ * Where new keys are generated. StrongBox is a separate secure element that is more resistant to attack than the
+ * TEE, but on many devices it's much slower. `auto` measures StrongBox once per install and uses it if it's fast
+ * enough.
+ */
+export type KeyPlacement = 'strongBoxRequired' | 'strongBoxPreferred' | 'strongBoxAvoided' | 'auto'
+
+export type KeyBackend = 'strongBox' | 'trustedEnvironment' | 'software'
+
+export interface KeyLatency {
+    /**
+     * Milliseconds to generate a key.
+     */
+    keyGeneration: number
+    /**
+     * Milliseconds to decrypt one block.
+     */
+    decrypt: number
+}
+
 export interface SecurityStrategy {
     name: SecurityStrategyName
     level: SecurityLevel
     biometrics: boolean
+    /**
+     * Where new keys will be generated. With `auto` placement this is only known once StrongBox has been measured.
+     * Android only.
+     */
+    backend?: KeyBackend
+    /**
+     * The measured latency of each backend, once measured. Android only.
+     */
+    latency?: {
+        trustedEnvironment?: KeyLatency
+        strongBox?: KeyLatency
+    }
 }
 
 export interface Credential {
@@ -51,6 +89,33 @@ export interface Failure<E> {
 
 export interface CredentialOptions {
     strategy: SecurityStrategyName
+    /**
+     * Generate a new key for the credential even if the strategy hasn't changed. Android only.
+     */
+    rotateKey?: boolean
+    /**
+     * Generate a new key for the credential if its existing key is older than this many milliseconds. Android only.
+     */
+    maxKeyAge?: number
+    /**
+     * Compress the value before encrypting it, if that makes it smaller. Large values such as token bundles are
+     * faster to read when compressed. Android only.
+     */
+    compress?: boolean
+    /**
+     * When the credential expires, in milliseconds since the epoch. Expired credentials are treated as absent and
+     * removed in the background. Android only.
+     */
+    expiresAt?: number
+    /**
+     * The number of milliseconds until the credential expires. Ignored if `expiresAt` is given. Android only.
+     */
+    expiresIn?: number
+    /**
+     * Where to generate a new key for the credential, overriding the `keyPlacement` config. An existing key is
+     * replaced if it doesn't satisfy a required or avoided placement. Android only.
+     */
+    placement?: KeyPlacement
 }
 export interface SecureCredentialsError {
     code: SecurityErrorCode;
@@ -63,16 +128,266 @@ export interface BiometricSensors {
     iris: boolean;
 }
 
+export interface UsernamesQuery {
+    service: string
+    /**
+     * Only list usernames starting with this prefix.
+     */
+    prefix?: string
+    /**
+     * The cursor returned with the previous page, to continue listing after it.
+     */
+    cursor?: string
+    /**
+     * The maximum number of usernames to return. Defaults to 100.
+     */
+    limit?: number
+    /**
+     * Include each credential's strategy and creation time.
+     */
+    includeMetadata?: boolean
+}
+
+export interface UsernameEntry {
+    username: string;
+    strategy?: SecurityStrategyName;
+    /**
+     * When the credential was first stored, in milliseconds since the epoch. Setting a new value or replacing its key
+     * doesn't change this.
+     */
+    created?: number;
+    /**
+     * When the credential's current key was created, in milliseconds since the epoch.
+     */
+    keyCreated?: number;
+    /**
+     * Where the credential's key was generated, if known.
+     */
+    backend?: KeyBackend;
+}
+
+export interface UsernamesPage {
+    usernames: UsernameEntry[];
+    /**
+     * Present if there are more usernames to list.
+     */
+    cursor?: string;
+}
+
+export interface CredentialHandle {
+    /**
+     * Pass to `resolveHandle` to read the credential. Native plugins can also resolve it.
+     */
+    handle: string;
+    service: string;
+    username: string;
+    strategy: SecurityStrategyName;
+    /**
+     * When the credential was first stored, in milliseconds since the epoch. Setting a new value or replacing its key
+     * doesn't change this.
+     */
+    created?: number;
+    /**
+     * When the credential's current key was created, in milliseconds since the epoch.
+     */
+    keyCreated?: number;
+    backend?: KeyBackend;
+    /**
+     * When the handle expires, in milliseconds since the epoch.
+     */
+    expires: number;
+}
+
+export interface CredentialReference {
+    service: string;
+    username: string;
+}
+
+export interface ConsistencyReport {
+    /**
+     * Keystore aliases of stored credentials' keys that no indexed credential uses. Other keys under the app's package
+     * name are left alone.
+     */
+    orphanedKeys: string[];
+    /**
+     * Credentials with stored ciphertext but no key to decrypt it.
+     */
+    orphanedCiphertext: CredentialReference[];
+    /**
+     * Indexed credentials with neither a key nor ciphertext.
+     */
+    staleEntries: CredentialReference[];
+    /**
+     * Indexed credentials with a key but no ciphertext or metadata, so they can't be read.
+     */
+    missingCiphertext: CredentialReference[];
+    /**
+     * Readable credentials missing from the index. Repair indexes them again.
+     */
+    unindexedCredentials: CredentialReference[];
+    repaired: boolean;
+}
+
+export interface CredentialChange {
+    username: string;
+    type: 'set' | 'remove';
+}
+
+export interface CredentialsChangedEvent {
+    service: string;
+    /**
+     * True if every credential for the service was removed. Any changes listed happened after that.
+     */
+    removedAll: boolean;
+    changes: CredentialChange[];
+}
+
+export type SigningAlgorithm =
+    | 'HmacSHA256'
+    | 'HmacSHA384'
+    | 'HmacSHA512'
+    | 'SHA256withRSA'
+    | 'SHA384withRSA'
+    | 'SHA512withRSA'
+    | 'SHA256withECDSA'
+    | 'SHA384withECDSA'
+    | 'SHA512withECDSA'
+
+export interface SignOptions {
+    service: string
+    username: string
+    /**
+     * For HMAC algorithms the credential's password is the key. For signature algorithms the password must be a
+     * Base64 encoded PKCS#8 private key, optionally PEM armoured.
+     */
+    algorithm: SigningAlgorithm
+    messages: string[]
+    /**
+     * How the messages are encoded. Defaults to utf8.
+     */
+    encoding?: 'utf8' | 'base64'
+}
+
+export interface LaneMetrics {
+    /**
+     * Calls waiting to run.
+     */
+    queued: number;
+    completed: number;
+    /**
+     * Calls rejected because the queue was full.
+     */
+    rejected: number;
+    /**
+     * Milliseconds recent calls waited before running.
+     */
+    queueTimeP50: number;
+    queueTimeP95: number;
+    queueTimeMax: number;
+    /**
+     * The mean milliseconds calls took to run once started.
+     */
+    runTimeMean: number;
+}
+
+/**
+ * Calls are run in lanes by priority: reads first, then writes, then maintenance such as removing credentials and
+ * rotating keys.
+ */
+export interface SchedulerMetrics {
+    interactive: LaneMetrics;
+    write: LaneMetrics;
+    maintenance: LaneMetrics;
+}
+
+/**
+ * A trace in the Chrome trace event format. Save it as JSON and open it in https://ui.perfetto.dev or chrome://tracing.
+ */
+export interface ChromeTrace {
+    traceEvents: {
+        name: string;
+        cat?: string;
+        ph: string;
+        ts?: number;
+        dur?: number;
+        pid: number;
+        tid: number;
+        id?: number;
+        args?: Record<string, unknown>;
+    }[];
+    displayTimeUnit: string;
+}
+
+export interface KeyRotationOptions {
+    /**
+     * Only rotate keys older than this many milliseconds. If omitted, every key is rotated.
+     */
+    maxKeyAge?: number
+    /**
+     * The number of credentials to rotate in each batch. Defaults to 10.
+     */
+    batchSize?: number
+    /**
+     * The delay in milliseconds between batches. Defaults to 500.
+     */
+    batchDelay?: number
+}
+
+export interface KeyRotationProgress {
+    total: number;
+    completed: number;
+    rotated: number;
+    /**
+     * Credentials that require the user to be present to decrypt, which will be rotated the next time they are set.
+     */
+    skipped: number;
+    failed: number;
+    done: boolean;
+}
+
 export interface SecureCredentialsPlugin {
     /**
      * Get a credential matching a service and username if one exists.
      * The user may be challenged to authenticate this request every time it is called.
      */
     getCredential(options: {service: string, username: string}): Promise<Success<Credential> | Failure<SecureCredentialsError>>;
+    /**
+     * Get a short-lived handle to a credential, with its metadata but not its password. Nothing is decrypted and the
+     * user isn't challenged until the handle is resolved. Handles expire after `ttl` milliseconds, which defaults to
+     * 60000, and when the credential changes. Android only.
+     */
+    getCredentialHandle(options: {service: string, username: string, ttl?: number}): Promise<Success<CredentialHandle> | Failure<SecureCredentialsError>>;
+    /**
+     * Get the credential a handle refers to. The user may be challenged as for `getCredential`. Android only.
+     */
+    resolveHandle(options: {handle: string}): Promise<Success<Credential> | Failure<SecureCredentialsError>>;
+    /**
+     * Invalidate a handle before it expires. Android only.
+     */
+    releaseHandle(options: {handle: string}): Promise<Success<boolean> | Failure<SecureCredentialsError>>;
     /** 
      * Get all usernames that have credentials stored for a service.
      */
     getUsernames(options: {service: string}): Promise<Success<string[]> | Failure<SecureCredentialsError>>;
+    /**
+     * List the usernames that have credentials stored for a service a page at a time, sorted by username.
+     * Android only.
+     */
+    listUsernames(options: UsernamesQuery): Promise<Success<UsernamesPage> | Failure<SecureCredentialsError>>;
+    /**
+     * List every service that has credentials stored, sorted. Android only.
+     */
+    listServices(): Promise<Success<string[]> | Failure<SecureCredentialsError>>;
+    /**
+     * Count the credentials stored for a service, or for all services if no service is given. Android only.
+     */
+    countCredentials(options?: {service?: string}): Promise<Success<number> | Failure<SecureCredentialsError>>;
+    /**
+     * Compare the credential index against the keystore and stored ciphertext, reporting keys and ciphertext that
+     * no longer belong to a credential, and credentials that can't be read. Services missing from the index are
+     * scanned too. Pass `repair` to remove them and to index readable credentials again. Android only.
+     */
+    checkConsistency(options?: {repair?: boolean}): Promise<Success<ConsistencyReport> | Failure<SecureCredentialsError>>;
     /** 
      * Remove a specific credential 
      */
@@ -85,6 +400,25 @@ export interface SecureCredentialsPlugin {
      * Set a credential into the secure store. This will overwrite any existing credential of the same service and username. 
      */
     setCredential(options: {service: string, credential: Credential, options: CredentialOptions}): Promise<Success<boolean> | Failure<SecureCredentialsError>>;
+    /**
+     * Compute an HMAC or signature of each message using a stored credential as the key, without the credential
+     * leaving native code. Resolves with the Base64 encoded results in the same order as the messages.
+     * The user may be challenged as for `getCredential`. Android only.
+     */
+    signWithCredential(options: SignOptions): Promise<Success<string[]> | Failure<SecureCredentialsError>>;
+    /**
+     * Get queue depths and timings for each of the lanes that plugin calls are scheduled in. Android only.
+     */
+    getSchedulerMetrics(): Promise<Success<SchedulerMetrics> | Failure<SecureCredentialsError>>
+    /**
+     * Start or stop recording a trace of plugin calls: time queued, loading keys and metadata, each cipher block and
+     * waiting for biometric prompts. Tracing can also be enabled from launch with the `tracing` config. Android only.
+     */
+    setTracing(options: {enabled: boolean}): Promise<Success<boolean> | Failure<SecureCredentialsError>>
+    /**
+     * Get the most recently recorded trace spans, optionally clearing them. Android only.
+     */
+    exportTrace(options?: {clear?: boolean}): Promise<Success<ChromeTrace> | Failure<SecureCredentialsError>>
     /**
      * Returns the available strategies for storing credentials, sorted strongest to weakest.
      */
@@ -95,4 +429,24 @@ export interface SecureCredentialsPlugin {
      * with those sensors. Not all devices advertise what sensors they have. The information gathered is not guaranteed to be 100% accurate. 
      */
     supportedBiometricSensors(): Promise<Success<BiometricSensors>>
+    /**
+     * Rotate the keys protecting stored credentials in the background. Progress is reported through the
+     * `keyRotationProgress` event, and an interrupted rotation resumes when the app next starts.
+     * Resolves with false if a rotation is already in progress. Android only.
+     */
+    rotateKeys(options?: KeyRotationOptions): Promise<Success<boolean> | Failure<SecureCredentialsError>>
+    /**
+     * Listen for progress of a key rotation started with `rotateKeys`. Android only.
+     */
+    addListener(eventName: 'keyRotationProgress', listenerFunc: (progress: KeyRotationProgress) => void): Promise<PluginListenerHandle> & PluginListenerHandle
+    /**
+     * Listen for credentials being set or removed, including by native code in the app. Changes made in quick
+     * succession are delivered together. Android only.
+     */
+    addListener(eventName: 'credentialsChanged', listenerFunc: (event: CredentialsChangedEvent) => void): Promise<PluginListenerHandle> & PluginListenerHandle
+    /**
+     * Limit `credentialsChanged` events to the given services. Omit `services` to receive events for all services.
+     * Android only.
+     */
+    setChangeSubscription(options: {services?: string[]}): Promise<Success<boolean> | Failure<SecureCredentialsError>>
 }
@@ -8,7 +8,15 @@ import {
   Success,
   CredentialOptions,
   BiometricSensors,
-  SecurityStrategy
+  SecurityStrategy,
+  KeyRotationOptions,
+  UsernamesQuery,
+  UsernamesPage,
+  ConsistencyReport,
+  SignOptions,
+  CredentialHandle,
+  SchedulerMetrics,
+  ChromeTrace
 } from './definitions';
 
 export class SecureCredentialsWeb extends WebPlugin implements SecureCredentialsPlugin {
@@ -17,10 +25,38 @@ export class SecureCredentialsWeb extends WebPlugin implements SecureCredentials
     return setTimeout(() => console.log('WEB -> getCredential', options) , 1000) as unknown as Success<Credential> | Failure<SecureCredentialsError>;
   }
 
+  async getCredentialHandle(options: {service: string, username: string, ttl?: number}): Promise<Success<CredentialHandle> | Failure<SecureCredentialsError>> {
+    return setTimeout(() => console.log('WEB -> getCredentialHandle', options) , 1000) as unknown as Success<CredentialHandle> | Failure<SecureCredentialsError>;
+  }
+
+  async resolveHandle(options: {handle: string}): Promise<Success<Credential> | Failure<SecureCredentialsError>> {
+    return setTimeout(() => console.log('WEB -> resolveHandle', options) , 1000) as unknown as Success<Credential> | Failure<SecureCredentialsError>;
+  }
+
+  async releaseHandle(options: {handle: string}): Promise<Success<boolean> | Failure<SecureCredentialsError>> {
+    return setTimeout(() => console.log('WEB -> releaseHandle', options) , 1000) as unknown as Success<boolean> | Failure<SecureCredentialsError>;
+  }
+
   async getUsernames(options: {service: string}): Promise<Success<string[]> | Failure<SecureCredentialsError>> {
     return setTimeout(() => console.log('WEB -> getUsernames', options) , 1000) as unknown as Success<string[]> | Failure<SecureCredentialsError>;
   }
 
+  async listUsernames(options: UsernamesQuery): Promise<Success<UsernamesPage> | Failure<SecureCredentialsError>> {
+    return setTimeout(() => console.log('WEB -> listUsernames', options) , 1000) as unknown as Success<UsernamesPage> | Failure<SecureCredentialsError>;
+  }
+
+  async listServices(): Promise<Success<string[]> | Failure<SecureCredentialsError>> {
+    return setTimeout(() => console.log('WEB -> listServices') , 1000) as unknown as Success<string[]> | Failure<SecureCredentialsError>;
+  }
+
+  async countCredentials(options?: {service?: string}): Promise<Success<number> | Failure<SecureCredentialsError>> {
+    return setTimeout(() => console.log('WEB -> countCredentials', options) , 1000) as unknown as Success<number> | Failure<SecureCredentialsError>;
+  }
+
+  async checkConsistency(options?: {repair?: boolean}): Promise<Success<ConsistencyReport> | Failure<SecureCredentialsError>> {
+    return setTimeout(() => console.log('WEB -> checkConsistency', options) , 1000) as unknown as Success<ConsistencyReport> | Failure<SecureCredentialsError>;
+  }
+
   async removeCredential(options: {service: string, username: string}): Promise<Success<boolean> | Failure<SecureCredentialsError>> {
     return setTimeout(() => console.log('WEB -> removeCredential', options) , 1000) as unknown as Success<boolean> | Failure<SecureCredentialsError>;
   }
@@ -33,6 +69,22 @@ export class SecureCredentialsWeb extends WebPlugin implements SecureCredentials
     return setTimeout(() => console.log('WEB -> setCredential', options) , 1000) as unknown as Success<boolean> | Failure<SecureCredentialsError>;
   }
 
+  async signWithCredential(options: SignOptions): Promise<Success<string[]> | Failure<SecureCredentialsError>> {
+    return setTimeout(() => console.log('WEB -> signWithCredential', options) , 1000) as unknown as Success<string[]> | Failure<SecureCredentialsError>;
+  }
+
+  async getSchedulerMetrics(): Promise<Success<SchedulerMetrics> | Failure<SecureCredentialsError>> {
+      return setTimeout(() => console.log('WEB -> getSchedulerMetrics') , 1000) as unknown as Success<SchedulerMetrics> | Failure<SecureCredentialsError>;
+  }
+
+  async setTracing(options: {enabled: boolean}): Promise<Success<boolean> | Failure<SecureCredentialsError>> {
+      return setTimeout(() => console.log('WEB -> setTracing', options) , 1000) as unknown as Success<boolean> | Failure<SecureCredentialsError>;
+  }
+
+  async exportTrace(options?: {clear?: boolean}): Promise<Success<ChromeTrace> | Failure<SecureCredentialsError>> {
+      return setTimeout(() => console.log('WEB -> exportTrace', options) , 1000) as unknown as Success<ChromeTrace> | Failure<SecureCredentialsError>;
+  }
+
   async availableSecurityStrategies(): Promise<Success<SecurityStrategy[]> | Failure<SecureCredentialsError>> {
       return setTimeout(() => console.log('WEB -> availableSecurityStrategies') , 1000) as unknown as Success<SecurityStrategy[]> | Failure<SecureCredentialsError>;
   }
@@ -40,4 +92,12 @@ export class SecureCredentialsWeb extends WebPlugin implements SecureCredentials
   async supportedBiometricSensors(): Promise<Success<BiometricSensors>> {
       return setTimeout(() => console.log('WEB -> supportedBiometricSensors?') , 1000) as unknown as Success<BiometricSensors>;
   }
+
+  async rotateKeys(options?: KeyRotationOptions): Promise<Success<boolean> | Failure<SecureCredentialsError>> {
+      return setTimeout(() => console.log('WEB -> rotateKeys', options) , 1000) as unknown as Success<boolean> | Failure<SecureCredentialsError>;
+  }
+
+  async setChangeSubscription(options: {services?: string[]}): Promise<Success<boolean> | Failure<SecureCredentialsError>> {
+      return setTimeout(() => console.log('WEB -> setChangeSubscription', options) , 1000) as unknown as Success<boolean> | Failure<SecureCredentialsError>;
+  }
 }